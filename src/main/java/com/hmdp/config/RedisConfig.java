@@ -0,0 +1,56 @@
+package com.hmdp.config;
+
+import cn.hutool.core.util.ClassUtil;
+import cn.hutool.core.util.ReflectUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.KryoCacheCodec;
+import com.hmdp.utils.MigratingCacheCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Configuration
+public class RedisConfig {
+
+    /*redis发布订阅的监听容器，各节点通过它接收缓存失效等广播消息*/
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory){
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+
+    /*缓存编码：json、kryo或自定义CacheCodec实现类的全限定名
+     * 迁移模式下读取时同时识别json和kryo两种格式
+     * */
+    @Bean
+    public CacheCodec cacheCodec(@Value("${hmdp.cache.codec.type:json}") String type,
+                                 @Value("${hmdp.cache.codec.compress-threshold:512}") int compressThreshold,
+                                 @Value("${hmdp.cache.codec.migration:true}") boolean migration,
+                                 @Value("${hmdp.cache.codec.kryo-classes:}") List<String> kryoClasses){
+        JsonCacheCodec jsonCodec = new JsonCacheCodec();
+        List<Class<?>> extraClasses = new ArrayList<>();
+        for (String className : kryoClasses) {
+            if(StrUtil.isNotBlank(className)){
+                extraClasses.add(ClassUtil.loadClass(className.trim()));
+            }
+        }
+        KryoCacheCodec kryoCodec = new KryoCacheCodec(compressThreshold, extraClasses);
+        CacheCodec writer;
+        if("json".equalsIgnoreCase(type)){
+            writer = jsonCodec;
+        } else if("kryo".equalsIgnoreCase(type)){
+            writer = kryoCodec;
+        } else {
+            return ReflectUtil.newInstance(type);
+        }
+        return migration ? new MigratingCacheCodec(writer, kryoCodec, jsonCodec) : writer;
+    }
+}
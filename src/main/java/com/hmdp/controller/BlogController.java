@@ -34,21 +34,30 @@ public class BlogController {
 
     @PostMapping
     public Result saveBlog(@RequestBody Blog blog) {
-        // 获取登录用户
-        UserDTO user = UserHolder.getUser();
-        blog.setUserId(user.getId());
-        // 保存探店博文
-        blogService.save(blog);
-        // 返回id
-        return Result.ok(blog.getId());
+        return blogService.saveBlog(blog);
     }
 
     @PutMapping("/like/{id}")
     public Result likeBlog(@PathVariable("id") Long id) {
-        // 修改点赞数量
-        blogService.update()
-                .setSql("liked = liked + 1").eq("id", id).update();
-        return Result.ok();
+        // 点赞或取消点赞，点赞数由定时任务批量写回数据库
+        return blogService.likeBlog(id);
+    }
+
+    @GetMapping("/of/follow")
+    public Result queryBlogOfFollow(
+            @RequestParam("lastId") Long max, @RequestParam(value = "offset", defaultValue = "0") Integer offset) {
+        // 关注的人发布的博客，滚动分页
+        return blogService.queryBlogOfFollow(max, offset);
+    }
+
+    @GetMapping("/{id}")
+    public Result queryBlogById(@PathVariable("id") Long id) {
+        return blogService.queryBlogById(id);
+    }
+
+    @GetMapping("/likes/{id}")
+    public Result queryBlogLikes(@PathVariable("id") Long id) {
+        return blogService.queryBlogLikes(id);
     }
 
     @GetMapping("/of/me")
@@ -65,20 +74,7 @@ public class BlogController {
 
     @GetMapping("/hot")
     public Result queryHotBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
-//        // 根据用户查询
-//        Page<Blog> page = blogService.query()
-//                .orderByDesc("liked")
-//                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-//        // 获取当前页数据
-//        List<Blog> records = page.getRecords();
-//        // 查询用户
-//        records.forEach(blog ->{
-//            Long userId = blog.getUserId();
-//            User user = userService.getById(userId);
-//            blog.setName(user.getNickName());
-//            blog.setIcon(user.getIcon());
-//        });
-//        return Result.ok(records);
-        return Result.ok();
+        // 按热度分页，作者信息批量查询
+        return blogService.queryHotBlog(current);
     }
 }
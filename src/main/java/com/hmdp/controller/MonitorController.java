@@ -0,0 +1,91 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyWarmer;
+import com.hmdp.utils.SeckillReconciler;
+import com.hmdp.utils.TwoLevelLockManager;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ *  运行指标查询
+ * </p>
+ */
+@RestController
+@RequestMapping("/monitor")
+public class MonitorController {
+
+    @Resource
+    private VoucherOrderServiceImpl voucherOrderService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private HotKeyWarmer hotKeyWarmer;
+
+    @Resource
+    private TwoLevelLockManager twoLevelLockManager;
+
+    @Resource
+    private SeckillReconciler seckillReconciler;
+
+    /**
+     * 秒杀订单处理指标：队列积压、批次数、批次耗时
+     */
+    @GetMapping("/seckill-order")
+    public Result seckillOrderMetrics() {
+        return Result.ok(voucherOrderService.queryOrderMetrics());
+    }
+
+    /**
+     * 缓存指标：本地缓存和redis的命中、未命中、淘汰次数
+     */
+    @GetMapping("/cache")
+    public Result cacheMetrics() {
+        return Result.ok(cacheClient.queryCacheMetrics());
+    }
+
+    /**
+     * 布隆过滤器内存占用：位数、哈希个数、元素数、字节数
+     */
+    @GetMapping("/bloom")
+    public Result bloomReport() {
+        return Result.ok(bloomFilterManager.queryMemoryReport());
+    }
+
+    /**
+     * 热点key指标：热点个数、晋升和替换次数、刷新次数
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeyMetrics() {
+        return Result.ok(hotKeyWarmer.queryHotKeyMetrics());
+    }
+
+    /**
+     * 锁指标：按命名空间统计获取次数、本地和redis拒绝次数、等待和持有耗时
+     */
+    @GetMapping("/locks")
+    public Result lockMetrics() {
+        return Result.ok(twoLevelLockManager.queryLockMetrics());
+    }
+
+    /**
+     * 最近一次redis与数据库秒杀数据的对账报告
+     */
+    @GetMapping("/seckill-reconcile")
+    public Result seckillReconcileReport() {
+        return Result.ok(seckillReconciler.queryLastReport());
+    }
+}
@@ -7,6 +7,7 @@ import com.hmdp.service.IVoucherService;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -30,7 +31,7 @@ public class VoucherController {
      */
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
-        voucherService.save(voucher);
+        voucherService.addVoucher(voucher);
         return Result.ok(voucher.getId());
     }
 
@@ -54,4 +55,14 @@ public class VoucherController {
     public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
        return voucherService.queryVoucherOfShop(shopId);
     }
+
+    /**
+     * 批量查询多个店铺的优惠券列表，用于列表页
+     * @param shopIds 店铺id，逗号分隔
+     * @return 店铺id -> 优惠券列表
+     */
+    @GetMapping("/list")
+    public Result queryVoucherOfShops(@RequestParam("shopIds") List<Long> shopIds) {
+        return voucherService.queryVoucherOfShops(shopIds);
+    }
 }
@@ -37,6 +37,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 库存分片数，1表示不分片
+     */
+    private Integer shards;
+
     /**
      * 创建时间
      */
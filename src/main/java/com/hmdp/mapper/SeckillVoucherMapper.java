@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +16,9 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /*一条语句扣减多个代金券的库存，counts为 代金券id -> 扣减数量；库存不足的代金券不扣减，返回扣减成功的代金券数*/
+    int deductStockBatch(@Param("counts") Map<Long, Integer> counts);
+
+    /*库存不足时扣到0为止，counts为 代金券id -> 扣减数量*/
+    int deductStockClamped(@Param("counts") Map<Long, Integer> counts);
 }
@@ -1,11 +1,55 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.service.IFollowService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisLockFactory;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +61,422 @@ import org.springframework.stereotype.Service;
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private IFollowService followService;
+
+    @Resource
+    private RedisLockFactory redisLockFactory;
+
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+    static{
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> HOT_SCRIPT;
+    static{
+        HOT_SCRIPT = new DefaultRedisScript<>();
+        HOT_SCRIPT.setLocation(new ClassPathResource("hot.lua"));
+        HOT_SCRIPT.setResultType(Long.class);
+    }
+
+    /*每条UPDATE语句最多写回的博客数*/
+    private static final int FLUSH_BATCH_SIZE = 500;
+
+    /*点赞数写回数据库的间隔*/
+    @Value("${hmdp.blog.like-flush-seconds:5}")
+    private long likeFlushSeconds;
+
+    /*热度半衰期：热度每经过一个半衰期减半*/
+    @Value("${hmdp.blog.hot.half-life-hours:24}")
+    private long hotHalfLifeHours;
+
+    /*新发布、每个点赞、每条评论贡献的热度*/
+    @Value("${hmdp.blog.hot.publish-weight:5}")
+    private double publishWeight;
+
+    @Value("${hmdp.blog.hot.like-weight:1}")
+    private double likeWeight;
+
+    @Value("${hmdp.blog.hot.comment-weight:2}")
+    private double commentWeight;
+
+    /*热榜保留的博客数*/
+    @Value("${hmdp.blog.hot.capacity:1000}")
+    private int hotCapacity;
+
+    /*基准时间距今超过多少个半衰期时重置，保证分数不会溢出*/
+    private static final int REBASE_HALF_LIVES = 20;
+
+    /*粉丝数达到该值的作者不再推送到粉丝收件箱，由粉丝读取时拉取*/
+    @Value("${hmdp.feed.celebrity-threshold:5000}")
+    private long celebrityThreshold;
+
+    /*收件箱和发件箱保留的博客数*/
+    @Value("${hmdp.feed.box-size:1000}")
+    private int feedBoxSize;
+
+    /*每次查询的粉丝数，同时也是一次pipeline写入的收件箱数*/
+    @Value("${hmdp.feed.fanout-batch-size:1000}")
+    private int fanoutBatchSize;
+
+    private ScheduledExecutorService likeFlushExecutor;
+
+    /*推送线程池：队列满时由发布线程自己推送，宁可变慢也不丢失推送*/
+    private final ExecutorService feedFanoutExecutor = new ThreadPoolExecutor(2, 4,
+            60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1024), new NamedThreadFactory("feed-fanout-", true),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    @PostConstruct
+    private void init(){
+        likeFlushExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("blog-like-flush-", true));
+        likeFlushExecutor.scheduleWithFixedDelay(this::flushLikedDelta, likeFlushSeconds, likeFlushSeconds, TimeUnit.SECONDS);
+        likeFlushExecutor.scheduleWithFixedDelay(this::maintainHotRanking, 0, 1, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        likeFlushExecutor.shutdownNow();
+        feedFanoutExecutor.shutdown();
+    }
+
+    @Override
+    public Result saveBlog(Blog blog) {
+        // 获取登录用户
+        UserDTO user = UserHolder.getUser();
+        blog.setUserId(user.getId());
+        // 保存探店博文
+        save(blog);
+        // 新博客进入热榜
+        long now = System.currentTimeMillis() / 1000;
+        stringRedisTemplate.execute(HOT_SCRIPT, Arrays.asList(BLOG_HOT_KEY, BLOG_HOT_EPOCH_KEY),
+                "incr", String.valueOf(now), String.valueOf(hotHalfLifeSeconds()),
+                blog.getId().toString(), String.valueOf(publishWeight), String.valueOf(now));
+        // 异步推送给粉丝
+        Long blogId = blog.getId();
+        Long authorId = user.getId();
+        long publishTime = System.currentTimeMillis();
+        feedFanoutExecutor.execute(() -> fanoutBlog(authorId, blogId, publishTime));
+        // 返回id
+        return Result.ok(blog.getId());
+    }
+
+    @Override
+    public Result queryBlogById(Long id) {
+        // 查询博客
+        Blog blog = getById(id);
+        if(blog == null){
+            return Result.fail("笔记不存在！");
+        }
+        // 查询作者
+        UserDTO user = userService.queryUserMap(Collections.singletonList(blog.getUserId())).get(blog.getUserId());
+        if(user != null){
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+        }
+        // 当前用户是否点赞
+        blog.setIsLike(isBlogLiked(blog.getId()));
+        return Result.ok(blog);
+    }
+
+    /*热榜分页：ZREVRANGE取一页id，批量查询博客、作者（经过缓存）和点赞状态（pipeline）
+     * 与页大小无关，固定为redis 4次以内、数据库2次以内
+     * */
+    @Override
+    public Result queryHotBlog(Integer current) {
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        long start = (long) (Math.max(current, 1) - 1) * size;
+        Set<String> members = stringRedisTemplate.opsForZSet().reverseRange(BLOG_HOT_KEY, start, start + size - 1);
+        if(members == null || members.isEmpty()){
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = members.stream().map(Long::valueOf).collect(Collectors.toList());
+        return Result.ok(queryBlogsWithAuthor(ids));
+    }
+
+    /*关注的人发布的博客：收件箱（推）与大V发件箱（拉）合并后滚动分页
+     * max为上一页最小的时间戳，offset为上一页中与它相同的条数；按时间倒序、id倒序排列，结果稳定
+     * */
+    @Override
+    public Result queryBlogOfFollow(Long max, Integer offset) {
+        UserDTO user = UserHolder.getUser();
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        int fetch = offset + size;
+        // 收件箱，以及关注的大V的发件箱，每个来源最多取offset+size条
+        List<String> boxKeys = new ArrayList<>();
+        boxKeys.add(FEED_KEY + user.getId());
+        // 关注的大V（包括曾经是大V的作者）：关注集合与大V集合求交集
+        Set<String> celebrities = stringRedisTemplate.opsForSet().intersect(FOLLOWS_KEY + user.getId(), FEED_CELEBRITY_KEY);
+        if(celebrities != null){
+            celebrities.forEach(id -> boxKeys.add(FEED_OUTBOX_KEY + id));
+        }
+        List<Object> boxes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String boxKey : boxKeys) {
+                connection.zSetCommands().zRevRangeByScoreWithScores(boxKey.getBytes(StandardCharsets.UTF_8),
+                        RedisZSetCommands.Range.range().lte(max).gte(0), RedisZSetCommands.Limit.limit().offset(0).count(fetch));
+            }
+            return null;
+        });
+        // 合并去重，按时间倒序、id倒序
+        Map<Long, Long> merged = new HashMap<>();
+        for (Object box : boxes) {
+            @SuppressWarnings("unchecked")
+            Set<ZSetOperations.TypedTuple<String>> tuples = (Set<ZSetOperations.TypedTuple<String>>) box;
+            for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                merged.put(Long.valueOf(tuple.getValue()), tuple.getScore().longValue());
+            }
+        }
+        List<Map.Entry<Long, Long>> sorted = new ArrayList<>(merged.entrySet());
+        sorted.sort(Map.Entry.<Long, Long>comparingByValue()
+                .thenComparing(Map.Entry.<Long, Long>comparingByKey()).reversed());
+        // 跳过上一页已经返回的offset条，取一页
+        List<Map.Entry<Long, Long>> page = sorted.subList(Math.min(offset, sorted.size()),
+                Math.min(offset + size, sorted.size()));
+        ScrollResult r = new ScrollResult();
+        if(page.isEmpty()){
+            r.setList(Collections.emptyList());
+            r.setMinTime(max);
+            r.setOffset(offset);
+            return Result.ok(r);
+        }
+        // 下一页的游标：最小时间，以及本页中与最小时间相同的条数
+        long minTime = page.get(page.size() - 1).getValue();
+        int os = 0;
+        for (Map.Entry<Long, Long> entry : page) {
+            os = entry.getValue() == minTime ? os + 1 : 0;
+        }
+        // 整页时间都与max相同时，需要加上之前跳过的条数
+        if(minTime == max){
+            os += offset;
+        }
+        r.setList(queryBlogsWithAuthor(page.stream().map(Map.Entry::getKey).collect(Collectors.toList())));
+        r.setMinTime(minTime);
+        r.setOffset(os);
+        return Result.ok(r);
+    }
+
+    /*按ids顺序批量查询博客、作者和点赞状态，已删除的博客跳过*/
+    private List<Blog> queryBlogsWithAuthor(List<Long> ids) {
+        // 查询博客，按ids顺序排列，已删除的跳过
+        Map<Long, Blog> blogMap = listByIds(ids).stream().collect(Collectors.toMap(Blog::getId, b -> b));
+        List<Blog> blogs = ids.stream().map(blogMap::get).filter(Objects::nonNull).collect(Collectors.toList());
+        // 批量查询作者
+        Map<Long, UserDTO> users = userService.queryUserMap(
+                blogs.stream().map(Blog::getUserId).collect(Collectors.toSet()));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if(user != null){
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+        // pipeline查询当前用户是否点赞
+        fillBlogLiked(blogs);
+        return blogs;
+    }
+
+    /*推送：普通作者按粉丝分页，一页pipeline写入粉丝收件箱；大V只写发件箱，粉丝读取时拉取
+     * 曾经成为大V的作者一直留在大V集合中，发件箱始终会被拉取
+     * */
+    private void fanoutBlog(Long authorId, Long blogId, long publishTime) {
+        try {
+            String member = blogId.toString();
+            stringRedisTemplate.opsForZSet().add(FEED_OUTBOX_KEY + authorId, member, publishTime);
+            stringRedisTemplate.opsForZSet().removeRange(FEED_OUTBOX_KEY + authorId, 0, -feedBoxSize - 1);
+            if(followService.countFollowers(authorId) >= celebrityThreshold){
+                stringRedisTemplate.opsForSet().add(FEED_CELEBRITY_KEY, authorId.toString());
+                return;
+            }
+            // 粉丝数降到阈值以下后不移出大V集合：之前只写了发件箱的博客不在粉丝收件箱中，粉丝仍需拉取发件箱，重复的由读取时去重
+            byte[] value = member.getBytes(StandardCharsets.UTF_8);
+            long lastId = 0;
+            while (true) {
+                List<Long> followers = followService.queryFollowerIds(authorId, lastId, fanoutBatchSize);
+                if(followers.isEmpty()){
+                    return;
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Long followerId : followers) {
+                        byte[] key = (FEED_KEY + followerId).getBytes(StandardCharsets.UTF_8);
+                        connection.zSetCommands().zAdd(key, publishTime, value);
+                        connection.zSetCommands().zRemRange(key, 0, -feedBoxSize - 1);
+                    }
+                    return null;
+                });
+                lastId = followers.get(followers.size() - 1);
+            }
+        } catch (Exception e) {
+            log.error("博客" + blogId + "推送失败", e);
+        }
+    }
+
+    /*点赞或取消点赞：lua脚本原子地修改点赞集合并累计点赞数增量，由定时任务批量写回数据库*/
+    @Override
+    public Result likeBlog(Long id) {
+        UserDTO user = UserHolder.getUser();
+        if(user == null){
+            return Result.fail("请先登录");
+        }
+        Long liked = stringRedisTemplate.execute(LIKE_SCRIPT,
+                Arrays.asList(BLOG_LIKED_KEY + id, BLOG_LIKED_DELTA_KEY, BLOG_HOT_KEY, BLOG_HOT_EPOCH_KEY),
+                id.toString(), user.getId().toString(), String.valueOf(System.currentTimeMillis()),
+                String.valueOf(likeWeight), String.valueOf(hotHalfLifeSeconds()));
+        return Result.ok(liked != null && liked == 1);
+    }
+
+    /*最早点赞的前5个用户*/
+    @Override
+    public Result queryBlogLikes(Long id) {
+        Set<String> top5 = stringRedisTemplate.opsForZSet().range(BLOG_LIKED_KEY + id, 0, 4);
+        if(top5 == null || top5.isEmpty()){
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
+        // 批量查询用户，按点赞顺序返回
+        Map<Long, UserDTO> userMap = userService.queryUserMap(ids);
+        List<UserDTO> users = ids.stream().map(userMap::get).filter(Objects::nonNull).collect(Collectors.toList());
+        return Result.ok(users);
+    }
+
+    /*ZSCORE判断当前用户是否点赞，未登录时返回false*/
+    private boolean isBlogLiked(Long blogId) {
+        UserDTO user = UserHolder.getUser();
+        if(user == null){
+            return false;
+        }
+        Double score = stringRedisTemplate.opsForZSet().score(BLOG_LIKED_KEY + blogId, user.getId().toString());
+        return score != null;
+    }
+
+    private void fillBlogLiked(List<Blog> blogs) {
+        UserDTO user = UserHolder.getUser();
+        if(user == null || blogs.isEmpty()){
+            blogs.forEach(blog -> blog.setIsLike(false));
+            return;
+        }
+        byte[] userId = user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                connection.zSetCommands().zScore((BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
+    private long hotHalfLifeSeconds() {
+        return TimeUnit.HOURS.toSeconds(hotHalfLifeHours);
+    }
+
+    /*热榜维护：热榜不存在时从数据库重建；基准时间过旧时重置分数并裁剪到容量*/
+    private void maintainHotRanking(){
+        // 锁不主动释放，每分钟只有一个节点维护
+        Boolean locked = stringRedisTemplate.opsForValue()
+                .setIfAbsent(LOCK_BLOG_HOT_KEY, "1", 50, TimeUnit.SECONDS);
+        if(!BooleanUtil.isTrue(locked)){
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis() / 1000;
+            if(!BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_HOT_KEY))){
+                rebuildHotRanking(now);
+                return;
+            }
+            String epoch = stringRedisTemplate.opsForValue().get(BLOG_HOT_EPOCH_KEY);
+            if(epoch != null && now - Long.parseLong(epoch) > REBASE_HALF_LIVES * hotHalfLifeSeconds()){
+                stringRedisTemplate.execute(HOT_SCRIPT, Arrays.asList(BLOG_HOT_KEY, BLOG_HOT_EPOCH_KEY),
+                        "rebase", String.valueOf(now), String.valueOf(hotHalfLifeSeconds()), String.valueOf(hotCapacity));
+            } else {
+                stringRedisTemplate.opsForZSet().removeRange(BLOG_HOT_KEY, 0, -hotCapacity - 1);
+            }
+        } catch (Exception e) {
+            log.error("热榜维护失败", e);
+        }
+    }
+
+    /*取最新的capacity篇博客，把已有的点赞和评论都按发布时间计算热度*/
+    private void rebuildHotRanking(long now){
+        stringRedisTemplate.opsForValue().setIfAbsent(BLOG_HOT_EPOCH_KEY, String.valueOf(now));
+        long epoch = Long.parseLong(stringRedisTemplate.opsForValue().get(BLOG_HOT_EPOCH_KEY));
+        List<Blog> blogs = query().select("id", "liked", "comments", "create_time")
+                .orderByDesc("id").last("limit " + hotCapacity).list();
+        if(blogs.isEmpty()){
+            return;
+        }
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(blogs.size() * 2);
+        for (Blog blog : blogs) {
+            long createTime = blog.getCreateTime().atZone(ZoneId.systemDefault()).toEpochSecond();
+            double weight = publishWeight
+                    + likeWeight * (blog.getLiked() == null ? 0 : blog.getLiked())
+                    + commentWeight * (blog.getComments() == null ? 0 : blog.getComments());
+            double score = weight * Math.pow(2, (double) (createTime - epoch) / hotHalfLifeSeconds());
+            tuples.add(new DefaultTypedTuple<>(blog.getId().toString(), score));
+        }
+        stringRedisTemplate.opsForZSet().add(BLOG_HOT_KEY, tuples);
+        log.debug("热榜重建完成，共" + tuples.size() + "篇");
+    }
+
+    /*把点赞数增量写回数据库
+     * 先把增量hash改名为快照，新的点赞写入新的hash；快照每写回一批就删除这一批的字段，
+     * 失败时下次继续处理快照中剩余的字段，已写回的不会重复累加
+     * 多节点通过看门狗锁保证只有一个节点写回，写回较慢时锁也不会过期
+     * */
+    private void flushLikedDelta(){
+        ILock lock = redisLockFactory.getLock(LOCK_BLOG_LIKED_FLUSH_NAME);
+        try {
+            if(!lock.lock(0, TimeUnit.MILLISECONDS)){
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            log.error("获取点赞写回锁失败", e);
+            return;
+        }
+        try {
+            if(!BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_LIKED_FLUSHING_KEY))){
+                if(!BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_LIKED_DELTA_KEY))){
+                    return;
+                }
+                stringRedisTemplate.rename(BLOG_LIKED_DELTA_KEY, BLOG_LIKED_FLUSHING_KEY);
+            }
+            Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(BLOG_LIKED_FLUSHING_KEY);
+            Map<Long, Long> deltas = new LinkedHashMap<>();
+            for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+                long delta = Long.parseLong(entry.getValue().toString());
+                if(delta != 0){
+                    deltas.put(Long.valueOf(entry.getKey().toString()), delta);
+                    if(deltas.size() >= FLUSH_BATCH_SIZE){
+                        flushBatch(deltas);
+                        deltas = new LinkedHashMap<>();
+                    }
+                }
+            }
+            if(!deltas.isEmpty()){
+                flushBatch(deltas);
+            }
+            stringRedisTemplate.delete(BLOG_LIKED_FLUSHING_KEY);
+        } catch (Exception e) {
+            log.error("点赞数写回数据库失败", e);
+        } finally {
+            lock.unLock();
+        }
+    }
+
+    /*一条UPDATE写回一批，成功后立即从快照中删除这些博客*/
+    private void flushBatch(Map<Long, Long> deltas) {
+        getBaseMapper().updateLikedBatch(deltas);
+        stringRedisTemplate.opsForHash().delete(BLOG_LIKED_FLUSHING_KEY,
+                deltas.keySet().stream().map(String::valueOf).toArray());
+    }
 }
@@ -1,11 +1,50 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +56,303 @@ import org.springframework.stereotype.Service;
 @Service
 public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> implements IFollowService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IUserService userService;
+
+    private static final DefaultRedisScript<List> COMMON_FOLLOW_SCRIPT;
+    static{
+        COMMON_FOLLOW_SCRIPT = new DefaultRedisScript<>();
+        COMMON_FOLLOW_SCRIPT.setLocation(new ClassPathResource("common_follow.lua"));
+        COMMON_FOLLOW_SCRIPT.setResultType(List.class);
+    }
+
+    /*共同关注最多返回的用户数*/
+    private static final int COMMON_FOLLOW_LIMIT = 100;
+
+    /*较小的关注集合不超过该值时直接SINTER，否则在脚本中SSCAN，扫描次数有上限*/
+    private static final int COMMON_FOLLOW_SINTER_MAX = 10000;
+    private static final int COMMON_FOLLOW_SCAN_COUNT = 1000;
+    private static final int COMMON_FOLLOW_SCAN_ROUNDS = 20;
+
+    /*对账时每次从数据库读取的行数*/
+    private static final int RECONCILE_CHUNK_SIZE = 5000;
+
+    /*关注集合与数据库对账的间隔*/
+    @Value("${hmdp.follow.reconcile-hours:24}")
+    private long reconcileHours;
+
+    private ScheduledExecutorService reconcileExecutor;
+
+    @PostConstruct
+    private void init(){
+        reconcileExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("follow-reconcile-", true));
+        reconcileExecutor.scheduleWithFixedDelay(this::reconcile, 0, reconcileHours, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        reconcileExecutor.shutdownNow();
+    }
+
+    @Override
+    public Result follow(Long followUserId, Boolean isFollow) {
+        Long userId = UserHolder.getUser().getId();
+        if(userId.equals(followUserId)){
+            return Result.fail("不能关注自己！");
+        }
+        String key = FOLLOWS_KEY + userId;
+        // 1.判断到底是关注还是取关
+        if(BooleanUtil.isTrue(isFollow)){
+            // 2.关注，新增数据，唯一索引保证重复关注只有一条
+            Follow follow = new Follow();
+            follow.setUserId(userId);
+            follow.setFollowUserId(followUserId);
+            try {
+                save(follow);
+            } catch (DuplicateKeyException e) {
+                // 已经关注过，仍然写入redis，修复可能缺失的数据
+            }
+            stringRedisTemplate.opsForSet().add(key, followUserId.toString());
+        } else {
+            // 3.取关，删除数据
+            remove(new QueryWrapper<Follow>().eq("user_id", userId).eq("follow_user_id", followUserId));
+            stringRedisTemplate.opsForSet().remove(key, followUserId.toString());
+        }
+        // 4.记录关注集合有变化的用户，对账覆盖集合后按数据库重新写入一次
+        stringRedisTemplate.opsForSet().add(FOLLOWS_DIRTY_KEY, userId.toString());
+        return Result.ok();
+    }
+
+    /*关注集合与数据库保持一致，O(1)判断，不查询数据库*/
+    @Override
+    public Result isFollow(Long followUserId) {
+        Long userId = UserHolder.getUser().getId();
+        Boolean isMember = stringRedisTemplate.opsForSet().isMember(FOLLOWS_KEY + userId, followUserId.toString());
+        return Result.ok(BooleanUtil.isTrue(isMember));
+    }
+
+    /*共同关注：在脚本中对两个关注集合求交集，一次往返；
+     * 关注数很大时改为扫描较小的集合，耗时有上限，最多返回COMMON_FOLLOW_LIMIT个
+     * */
+    @Override
+    public Result followCommons(Long id) {
+        Long userId = UserHolder.getUser().getId();
+        List<?> members = stringRedisTemplate.execute(COMMON_FOLLOW_SCRIPT,
+                Arrays.asList(FOLLOWS_KEY + userId, FOLLOWS_KEY + id),
+                String.valueOf(COMMON_FOLLOW_LIMIT), String.valueOf(COMMON_FOLLOW_SINTER_MAX),
+                String.valueOf(COMMON_FOLLOW_SCAN_COUNT), String.valueOf(COMMON_FOLLOW_SCAN_ROUNDS));
+        if(members == null || members.isEmpty()){
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = members.stream().map(m -> Long.valueOf(m.toString())).collect(Collectors.toList());
+        return Result.ok(toUsers(ids));
+    }
+
+    /*粉丝列表，按用户id游标分页，lastId为上一页最后一个用户的id*/
+    @Override
+    public Result queryFollowers(Long userId, Long lastId) {
+        return Result.ok(toUsers(queryFollowerIds(userId, lastId, SystemConstants.MAX_PAGE_SIZE)));
+    }
+
+    /*关注列表，按用户id游标分页，lastId为上一页最后一个用户的id*/
+    @Override
+    public Result queryFollowees(Long userId, Long lastId) {
+        List<Long> ids = listObjs(new QueryWrapper<Follow>().select("follow_user_id")
+                .eq("user_id", userId).gt("follow_user_id", lastId)
+                .orderByAsc("follow_user_id").last("limit " + SystemConstants.MAX_PAGE_SIZE),
+                o -> Long.valueOf(o.toString()));
+        return Result.ok(toUsers(ids));
+    }
+
+    /*粉丝数*/
+    @Override
+    public long countFollowers(Long userId) {
+        return query().eq("follow_user_id", userId).count();
+    }
+
+    /*按粉丝id游标分页查询粉丝，走(follow_user_id, user_id)索引，不使用offset，深分页时不会变慢*/
+    @Override
+    public List<Long> queryFollowerIds(Long userId, Long lastId, int limit) {
+        return listObjs(new QueryWrapper<Follow>().select("user_id")
+                .eq("follow_user_id", userId).gt("user_id", lastId)
+                .orderByAsc("user_id").last("limit " + limit),
+                o -> Long.valueOf(o.toString()));
+    }
+
+    /*按id顺序补全用户信息，已注销的用户跳过*/
+    private List<UserDTO> toUsers(List<Long> ids) {
+        if(ids.isEmpty()){
+            return Collections.emptyList();
+        }
+        Map<Long, UserDTO> users = userService.queryUserMap(ids);
+        return ids.stream().map(users::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    /*对账：按(user_id, follow_user_id)顺序流式读取tb_follow，每个用户先写入临时集合，读完后RENAME覆盖，
+     * 内存中最多保留一批数据；多节点只有一个执行，锁不主动释放，一个周期内不会重复执行
+     * 然后SCAN所有关注集合，数据库中已没有关注记录的用户删除集合；
+     * 最后对账期间关注或取关过的用户按数据库重新写入，RENAME覆盖掉的修改在这里补回
+     * */
+    private void reconcile() {
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_FOLLOWS_RECONCILE_KEY, "1",
+                Math.max(1, reconcileHours * 60 - 5), TimeUnit.MINUTES);
+        if(!BooleanUtil.isTrue(locked)){
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        long rows = 0;
+        long users = 0;
+        long lastUserId = 0;
+        long lastFollowUserId = 0;
+        // 正在重建的用户，跨批次时继续写入同一个临时集合
+        Long openUser = null;
+        try {
+            // 之前的变化已包含在本次读取的数据中
+            stringRedisTemplate.delete(FOLLOWS_DIRTY_KEY);
+            while (true) {
+                long cursorUser = lastUserId;
+                long cursorFollow = lastFollowUserId;
+                List<Follow> follows = query().select("user_id", "follow_user_id")
+                        .and(w -> w.gt("user_id", cursorUser)
+                                .or(o -> o.eq("user_id", cursorUser).gt("follow_user_id", cursorFollow)))
+                        .orderByAsc("user_id", "follow_user_id")
+                        .last("limit " + RECONCILE_CHUNK_SIZE).list();
+                if(follows.isEmpty()){
+                    break;
+                }
+                // 按用户分组，保持顺序
+                Map<Long, List<byte[]>> chunk = new LinkedHashMap<>();
+                for (Follow follow : follows) {
+                    chunk.computeIfAbsent(follow.getUserId(), k -> new ArrayList<>())
+                            .add(follow.getFollowUserId().toString().getBytes(StandardCharsets.UTF_8));
+                }
+                Long previous = openUser;
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    Long current = previous;
+                    for (Map.Entry<Long, List<byte[]>> entry : chunk.entrySet()) {
+                        Long user = entry.getKey();
+                        if(!user.equals(current)){
+                            // 上一个用户已读完，临时集合覆盖正式集合
+                            if(current != null){
+                                connection.keyCommands().rename(rebuildKey(current), followsKey(current));
+                            }
+                            connection.keyCommands().del(rebuildKey(user));
+                            current = user;
+                        }
+                        connection.setCommands().sAdd(rebuildKey(user), entry.getValue().toArray(new byte[0][]));
+                    }
+                    return null;
+                });
+                for (Long user : chunk.keySet()) {
+                    if(!user.equals(openUser)){
+                        users++;
+                        openUser = user;
+                    }
+                }
+                rows += follows.size();
+                Follow last = follows.get(follows.size() - 1);
+                lastUserId = last.getUserId();
+                lastFollowUserId = last.getFollowUserId();
+            }
+            if(openUser != null){
+                Long user = openUser;
+                stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                    connection.keyCommands().rename(rebuildKey(user), followsKey(user));
+                    return null;
+                });
+            }
+            long removed = removeStaleSets();
+            long replayed = rebuildDirtyUsers();
+            log.debug("关注集合对账完成，用户" + users + "个，关注" + rows + "条，删除多余集合" + removed
+                    + "个，重写对账期间变化的用户" + replayed + "个，耗时" + (System.currentTimeMillis() - begin) + "ms");
+        } catch (Exception e) {
+            log.error("关注集合对账失败，已处理到用户" + lastUserId, e);
+        }
+    }
+
+    /*SCAN关注集合，数据库中已没有关注记录的用户删除集合，返回删除的个数*/
+    private long removeStaleSets() {
+        Long removed = stringRedisTemplate.execute((RedisCallback<Long>) connection -> {
+            long count = 0;
+            ScanOptions options = ScanOptions.scanOptions().match(FOLLOWS_KEY + "*").count(RECONCILE_CHUNK_SIZE).build();
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                List<Long> chunk = new ArrayList<>();
+                while (cursor.hasNext()) {
+                    String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                    String id = key.substring(FOLLOWS_KEY.length());
+                    // 跳过临时集合等其他key
+                    if(!StrUtil.isNumeric(id)){
+                        continue;
+                    }
+                    chunk.add(Long.valueOf(id));
+                    if(chunk.size() >= RECONCILE_CHUNK_SIZE){
+                        count += removeStaleChunk(connection, chunk);
+                        chunk.clear();
+                    }
+                }
+                if(!chunk.isEmpty()){
+                    count += removeStaleChunk(connection, chunk);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return count;
+        });
+        return removed == null ? 0 : removed;
+    }
+
+    private long removeStaleChunk(RedisConnection connection, List<Long> userIds) {
+        Set<Long> existing = new HashSet<>(listObjs(new QueryWrapper<Follow>()
+                .select("distinct user_id").in("user_id", userIds),
+                o -> Long.valueOf(o.toString())));
+        long count = 0;
+        for (Long userId : userIds) {
+            if(!existing.contains(userId)){
+                connection.keyCommands().del(followsKey(userId));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*对账期间关注或取关过的用户，RENAME或删除可能覆盖了他们的修改，按数据库重新写入；返回处理的用户数
+     * 处理期间再次变化的用户会重新加入集合，下一次对账时处理
+     * */
+    private long rebuildDirtyUsers() {
+        long count = 0;
+        while (true) {
+            List<String> dirty = stringRedisTemplate.opsForSet().pop(FOLLOWS_DIRTY_KEY, RECONCILE_CHUNK_SIZE);
+            if(dirty == null || dirty.isEmpty()){
+                return count;
+            }
+            for (String id : dirty) {
+                Long userId = Long.valueOf(id);
+                List<String> followUserIds = listObjs(new QueryWrapper<Follow>().select("follow_user_id")
+                        .eq("user_id", userId), Object::toString);
+                stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                    if(followUserIds.isEmpty()){
+                        connection.keyCommands().del(followsKey(userId));
+                        return null;
+                    }
+                    connection.keyCommands().del(rebuildKey(userId));
+                    connection.setCommands().sAdd(rebuildKey(userId), followUserIds.stream()
+                            .map(f -> f.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new));
+                    connection.keyCommands().rename(rebuildKey(userId), followsKey(userId));
+                    return null;
+                });
+                count++;
+            }
+        }
+    }
+
+    private static byte[] followsKey(Long userId) {
+        return (FOLLOWS_KEY + userId).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] rebuildKey(Long userId) {
+        return (FOLLOWS_KEY + userId + ":rebuild").getBytes(StandardCharsets.UTF_8);
+    }
 }
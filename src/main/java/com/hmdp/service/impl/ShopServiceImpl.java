@@ -1,28 +1,52 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilterManager;
 import com.hmdp.utils.CacheClient;
-import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.HotKeyWarmer;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.TransactionHooks;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -46,71 +70,108 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private HotKeyWarmer hotKeyWarmer;
+
+    @Resource
+    private ShopSearchIndex shopSearchIndex;
+
+    private static final DefaultRedisScript<List> GEO_NEAR_SCRIPT;
+    static{
+        GEO_NEAR_SCRIPT = new DefaultRedisScript<>();
+        GEO_NEAR_SCRIPT.setLocation(new ClassPathResource("geo_near.lua"));
+        GEO_NEAR_SCRIPT.setResultType(List.class);
+    }
+
+    /*导入GEO集合时每次从数据库读取的店铺数*/
+    private static final int GEO_LOAD_BATCH_SIZE = 1000;
+
+    /*附近店铺的搜索半径*/
+    @Value("${hmdp.shop.geo.radius-meters:5000}")
+    private long geoRadiusMeters;
+
+    /*每次搜索最多保存的店铺数，也是能翻到的最深位置*/
+    @Value("${hmdp.shop.geo.max-results:500}")
+    private int geoMaxResults;
+
+    /*坐标保留的小数位数，取整后相同的坐标共用一份搜索结果，4位约10米*/
+    @Value("${hmdp.shop.geo.precision:4}")
+    private int geoPrecision;
+
+    private final ExecutorService geoLoadExecutor =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("shop-geo-load-", true));
+
+    @PostConstruct
+    private void init(){
+        bloomFilterManager.register(BloomFilterManager.SHOP, getBaseMapper());
+        //销量最高的前N个店铺作为初始热点数据
+        hotKeyWarmer.register(HotKeyWarmer.SHOP, CACHE_SHOP_HOT_KEY, LOCK_SHOP_HOT_KEY, this::getById,
+                n -> listObjs(new QueryWrapper<Shop>().select("id").orderByDesc("sold").last("limit " + n),
+                        o -> ((Number) o).longValue()));
+        //搜索索引只需要id、名称和商圈
+        shopSearchIndex.register((lastId, limit) -> query().select("id", "name", "area")
+                .gt("id", lastId).orderByAsc("id").last("limit " + limit).list());
+    }
+
+    /*启动后异步导入店铺坐标，多节点只有一个执行*/
+    @EventListener(ApplicationReadyEvent.class)
+    public void startLoadShopGeo() {
+        geoLoadExecutor.execute(this::loadShopGeo);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        geoLoadExecutor.shutdownNow();
+    }
+
     @Override
     public Result queryById(Long id) {
         //id <= 0 直接返回
         if(id <= 0){
             return Result.ok("商店不存在");
         }
+        //布隆过滤器判断不存在，不再查询缓存和数据库
+        if(!bloomFilterManager.mightContain(BloomFilterManager.SHOP, id)){
+            return Result.ok("商店不存在");
+        }
+
+        /*解决缓存击穿（1个热点key）-逻辑过期
+         * 热点数据由HotKeyWarmer预热并提前刷新，尚未写入redis时走互斥锁查询
+         * */
+        if(hotKeyWarmer.recordAccess(HotKeyWarmer.SHOP, id)){
+            Shop hot = cacheClient.queryWithLogicalExpire(CACHE_SHOP_HOT_KEY, LOCK_SHOP_HOT_KEY, id, Shop.class,
+                    this::getById, hotKeyWarmer.getTtlSeconds(), TimeUnit.SECONDS);
+            if(hot != null){
+                return Result.ok(hot);
+            }
+        }
 
         /*解决缓存穿透（多个key)-写入空值
+        * 解决缓存击穿（1个热点key)-互斥锁，并发未命中只由一个线程加载
         * 调用工具类
         * */
-        Shop shop = cacheClient.queryWithPassTrough(CACHE_SHOP_KEY, id, Shop.class,
+        Shop shop = cacheClient.queryWithMutex(CACHE_SHOP_KEY, LOCK_SHOP_KEY, id, Shop.class,
                 this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
-        /*解决缓存击穿（1个热点key）-逻辑过期
-         * 此类数据需要提前存进去，例如热点数据，若查询不存在，即不是热点数据
-         * */
-//        Shop shop2 = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, LOCK_SHOP_KEY, id, Shop.class,
-//                this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
         if(shop == null){
             return Result.ok("商店不存在");
         }
         return Result.ok(shop);
     }
 
-    /*解决缓存击穿（1个热点key)-利用互斥锁(含解决缓存穿透)*/
-    private Shop queryWithMutex(Long id) {
-        //根据id查询redis
-        String key = CACHE_SHOP_KEY + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //存在，返回redis数据
-        if(StrUtil.isNotBlank(shopJson)){
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        //不存在或者空值，先判断是否为空值
-        if("".equals(shopJson) ){
-            return null;
-        }
-        //不存在，实现缓存重建
-        String lockKey = LOCK_SHOP_KEY+id;
-        Shop shop = null;
-//        try {
-//            Boolean flag = tryLock(lockKey);
-//            if(BooleanUtil.isFalse(flag)){
-//                //获取互斥锁失败，休眠一段时间
-//                Thread.sleep(100);
-//                return queryWithMutex(id);
-//            }
-//            //存在，存入数据库
-//            shop = shopService.getById(id);
-//            //数据库不存在，返回错误码
-//            if(shop == null){
-//                //写入空值
-//                stringRedisTemplate.opsForValue().set(key, "",CACHE_NULL_TTL, TimeUnit.MINUTES);
-//                unLock(lockKey);
-//                return null;
-//            }
-//            //数据库存在，shop转为json，存入redis并返回
-//            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-//        } catch (InterruptedException e) {
-//            throw new RuntimeException(e);
-//        } finally {
-//            unLock(lockKey);
-//        }
-        return shop;
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        bloomFilterManager.put(BloomFilterManager.SHOP, shop.getId());
+        // 写入GEO集合和搜索索引
+        syncShopGeo(null, shop);
+        shopSearchIndex.update(shop);
+        // 返回店铺id
+        return Result.ok(shop.getId());
     }
 
     @Override
@@ -119,8 +180,153 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if(shop.getId() == null){
             return Result.fail("店铺ID不能为空");
         }
+        Shop old = getById(shop.getId());
         shopService.updateById(shop);
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        //类型、坐标、名称可能变化，按更新后的完整数据同步GEO集合和搜索索引
+        Shop current = getById(shop.getId());
+        //事务提交后再删除缓存、同步GEO，避免并发查询在提交前把旧数据重新写入缓存，回滚时也不会改动redis
+        TransactionHooks.afterCommit(() -> {
+            cacheClient.delete(CACHE_SHOP_KEY + shop.getId());
+            syncShopGeo(old, current);
+            //热点数据删除后由预热任务下一轮重新加载
+            cacheClient.delete(CACHE_SHOP_HOT_KEY + shop.getId());
+        });
+        shopSearchIndex.update(current);
         return Result.ok();
     }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
+        // 1.没有坐标，按数据库分页查询
+        if(x == null || y == null){
+            Page<Shop> page = query()
+                    .eq("type_id", typeId)
+                    .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        // 2.计算分页参数
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE - 1;
+        if(from >= geoMaxResults){
+            return Result.ok(Collections.emptyList());
+        }
+        // 3.坐标取整，附近的用户共用同一份按距离排序的结果，深分页直接按下标读取
+        String lon = BigDecimal.valueOf(x).setScale(geoPrecision, RoundingMode.HALF_UP).toPlainString();
+        String lat = BigDecimal.valueOf(y).setScale(geoPrecision, RoundingMode.HALF_UP).toPlainString();
+        List<?> result = stringRedisTemplate.execute(GEO_NEAR_SCRIPT,
+                Arrays.asList(SHOP_GEO_KEY + typeId, SHOP_GEO_NEAR_KEY + typeId + ":" + lon + ":" + lat),
+                lon, lat, String.valueOf(geoRadiusMeters), String.valueOf(geoMaxResults),
+                String.valueOf(SHOP_GEO_NEAR_TTL), String.valueOf(from), String.valueOf(end));
+        if(result == null || result.isEmpty()){
+            return Result.ok(Collections.emptyList());
+        }
+        // 4.解析店铺id和距离，结果为 id, 距离, id, 距离...
+        List<Long> ids = new ArrayList<>(result.size() / 2);
+        Map<Long, Double> distances = new HashMap<>(result.size());
+        for (int i = 0; i + 1 < result.size(); i += 2) {
+            Long id = Long.valueOf(result.get(i).toString());
+            ids.add(id);
+            distances.put(id, Double.valueOf(result.get(i + 1).toString()));
+        }
+        // 5.批量查询店铺，按距离顺序返回
+        Map<Long, Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class,
+                batch -> listByIds(batch).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> list = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Shop cached = shops.get(id);
+            if(cached == null){
+                continue;
+            }
+            // 缓存中的对象可能被其他请求共享，复制后再填充距离
+            Shop shop = BeanUtil.copyProperties(cached, Shop.class);
+            shop.setDistance(distances.get(id));
+            list.add(shop);
+        }
+        return Result.ok(list);
+    }
+
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        // 1.没有关键字，按数据库分页查询
+        if(StrUtil.isBlank(name)){
+            Page<Shop> page = query().page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        // 2.查询倒排索引，得到按相关度排序的本页店铺id
+        int from = (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        List<Long> ids = shopSearchIndex.search(name, from, SystemConstants.MAX_PAGE_SIZE);
+        if(ids == null){
+            // 索引尚未构建完成，回退到数据库模糊查询
+            Page<Shop> page = query()
+                    .like("name", name)
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        if(ids.isEmpty()){
+            return Result.ok(Collections.emptyList());
+        }
+        // 3.批量查询店铺，保持索引的顺序
+        Map<Long, Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class,
+                batch -> listByIds(batch).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return Result.ok(ids.stream().map(shops::get).filter(Objects::nonNull).collect(Collectors.toList()));
+    }
+
+    /*同步一个店铺的GEO数据：类型变化时从原类型的集合中删除*/
+    private void syncShopGeo(Shop old, Shop shop) {
+        if(shop == null){
+            return;
+        }
+        if(old != null && old.getTypeId() != null && !Objects.equals(old.getTypeId(), shop.getTypeId())){
+            stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + old.getTypeId(), shop.getId().toString());
+        }
+        if(shop.getTypeId() == null || shop.getX() == null || shop.getY() == null){
+            return;
+        }
+        stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + shop.getTypeId(),
+                new Point(shop.getX(), shop.getY()), shop.getId().toString());
+    }
+
+    /*按主键游标分批读取tb_shop，每批按类型分组后一次pipeline写入GEO集合，内存中只保留一批数据
+     * 锁不主动释放，多个节点同时启动时只导入一次
+     * */
+    public void loadShopGeo() {
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_SHOP_GEO_LOAD_KEY, "1", 10, TimeUnit.MINUTES);
+        if(!BooleanUtil.isTrue(locked)){
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        long lastId = 0;
+        long total = 0;
+        try {
+            while (true) {
+                List<Shop> shops = query().select("id", "type_id", "x", "y")
+                        .gt("id", lastId).orderByAsc("id").last("limit " + GEO_LOAD_BATCH_SIZE).list();
+                if(shops.isEmpty()){
+                    break;
+                }
+                Map<Long, Map<byte[], Point>> byType = new HashMap<>();
+                for (Shop shop : shops) {
+                    if(shop.getTypeId() == null || shop.getX() == null || shop.getY() == null){
+                        continue;
+                    }
+                    byType.computeIfAbsent(shop.getTypeId(), k -> new HashMap<>())
+                            .put(shop.getId().toString().getBytes(StandardCharsets.UTF_8), new Point(shop.getX(), shop.getY()));
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Map.Entry<Long, Map<byte[], Point>> entry : byType.entrySet()) {
+                        connection.geoCommands().geoAdd(
+                                (SHOP_GEO_KEY + entry.getKey()).getBytes(StandardCharsets.UTF_8), entry.getValue());
+                    }
+                    return null;
+                });
+                total += shops.size();
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            log.debug("店铺坐标导入完成，共" + total + "个，耗时" + (System.currentTimeMillis() - begin) + "ms");
+        } catch (Exception e) {
+            log.error("店铺坐标导入失败，已处理到id=" + lastId, e);
+        }
+    }
 }
@@ -1,20 +1,19 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
 
 /**
  * <p>
@@ -28,31 +27,28 @@ import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Autowired
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheClient cacheClient;
 
     @Autowired
     private ShopTypeServiceImpl shopTypeService;
 
     @Override
     public Result queryList() {
-        String key = "cache:shop:typeList";
+        String key = CACHE_SHOP_TYPE_KEY;
         // 1. 先从缓存查找
-        String typeListJson = stringRedisTemplate.opsForValue().get(key);
+        List<ShopType> cached = cacheClient.getList(key, ShopType.class);
 
         // 存在，返回
-        if(StrUtil.isNotBlank(typeListJson)){
-            List<ShopType> typeList = JSONUtil.toList(typeListJson, ShopType.class);
-            return Result.ok(typeList);
+        if(cached != null){
+            return Result.ok(cached);
         }
         // 2. 若不存在，从数据库查找
         List<ShopType> typeList = shopTypeService.query().orderByAsc("sort").list();
         if(typeList.isEmpty()){
             return Result.fail("类型列表不存在");
         }
-        // 将结果转为Json存入redis
-        String value = JSONUtil.toJsonStr(typeList);
-        stringRedisTemplate.opsForValue().set(key, value);
-        stringRedisTemplate.expire(key, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 编码后存入redis
+        cacheClient.set(key, typeList, CACHE_SHOP_TTL, TimeUnit.MINUTES);
         return Result.ok(typeList);
     }
 }
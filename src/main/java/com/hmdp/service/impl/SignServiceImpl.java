@@ -0,0 +1,233 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.SignResult;
+import com.hmdp.entity.Sign;
+import com.hmdp.mapper.SignMapper;
+import com.hmdp.service.ISignService;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.UserHolder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * <p>
+ *  签到服务：每月一个redis位图，每个用户占用从 userId*32 开始的32位，第n号为其中第n位，
+ *  用户id连续时每人每月约4字节，不会为每个用户单独创建key；
+ *  超过保留月数的位图按用户归档到tb_sign（每人每月一行）后删除
+ * </p>
+ *
+ * @author 虎哥
+ * @since 2021-12-22
+ */
+@Service
+public class SignServiceImpl extends ServiceImpl<SignMapper, Sign> implements ISignService {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private static final DateTimeFormatter MONTH_FORMATTER = DateTimeFormatter.ofPattern("yyyyMM");
+
+    /*每个用户每月占用的位数*/
+    private static final int BITS_PER_USER = 32;
+
+    /*归档时每次GETRANGE读取的用户数，8192个用户为32KB*/
+    private static final int ARCHIVE_CHUNK_USERS = 8192;
+    private static final int ARCHIVE_INSERT_BATCH = 1000;
+
+    /*归档时最多往前检查的月数*/
+    private static final int ARCHIVE_LOOKBACK_MONTHS = 12;
+
+    /*连续签到最多向前统计的月数*/
+    private static final int MAX_STREAK_MONTHS = 12;
+
+    /*redis中保留的月数，包括当月；更早的月份归档到数据库*/
+    @Value("${hmdp.sign.keep-months:2}")
+    private int keepMonths;
+
+    @Value("${hmdp.sign.archive-hours:24}")
+    private long archiveHours;
+
+    private ScheduledExecutorService archiveExecutor;
+
+    @PostConstruct
+    private void init(){
+        archiveExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("sign-archive-", true));
+        archiveExecutor.scheduleWithFixedDelay(this::archive, 1, archiveHours * 60, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        archiveExecutor.shutdownNow();
+    }
+
+    @Override
+    public Result sign() {
+        // 1.获取当前登录用户
+        Long userId = UserHolder.getUser().getId();
+        // 2.获取日期
+        LocalDate now = LocalDate.now();
+        // 3.写入redis，SETBIT返回原来的值
+        Boolean signed = stringRedisTemplate.opsForValue()
+                .setBit(signKey(now), bitOffset(userId, now.getDayOfMonth()), true);
+        if(BooleanUtil.isTrue(signed)){
+            return Result.fail("今天已经签到过了！");
+        }
+        return Result.ok();
+    }
+
+    @Override
+    public Result signCount() {
+        // 1.获取当前登录用户
+        Long userId = UserHolder.getUser().getId();
+        // 2.一次BITFIELD读取本月32位
+        LocalDate now = LocalDate.now();
+        long bits = queryMonthBits(userId, YearMonth.from(now));
+        int today = now.getDayOfMonth();
+        boolean signedToday = (bits & dayMask(today)) != 0;
+        // 3.统计
+        SignResult result = new SignResult();
+        result.setSignedToday(signedToday);
+        result.setMonthCount(Long.bitCount(bits));
+        result.setStreak(countStreak(userId, YearMonth.from(now), bits, signedToday ? today : today - 1));
+        return Result.ok(result);
+    }
+
+    /*从day往前数连续签到的天数，连续到1号时继续统计上个月*/
+    private int countStreak(Long userId, YearMonth month, long bits, int day) {
+        int streak = 0;
+        for (int months = 0; ; months++) {
+            // 把day对应的位移到最低位，取反后末尾0的个数就是截至day连续的1的个数
+            int run = day <= 0 ? 0 : Math.min(day, Long.numberOfTrailingZeros(~(bits >>> (BITS_PER_USER - day))));
+            streak += run;
+            if(run < day || months >= MAX_STREAK_MONTHS){
+                return streak;
+            }
+            month = month.minusMonths(1);
+            bits = queryMonthBits(userId, month);
+            day = month.lengthOfMonth();
+        }
+    }
+
+    /*查询用户某个月的签到位图，保留期内查redis，更早的查归档；
+     * 归档定时执行，刚超过保留期的月份可能还没有归档，归档中没有记录时再查redis
+     * */
+    private long queryMonthBits(Long userId, YearMonth month) {
+        if(ChronoUnit.MONTHS.between(month, YearMonth.now()) >= keepMonths){
+            Sign sign = query().eq("user_id", userId).eq("`year`", month.getYear())
+                    .eq("`month`", month.getMonthValue()).one();
+            if(sign != null && sign.getSignBits() != null){
+                return sign.getSignBits();
+            }
+        }
+        return queryRedisBits(userId, month);
+    }
+
+    private long queryRedisBits(Long userId, YearMonth month) {
+        List<Long> values = stringRedisTemplate.opsForValue().bitField(USER_SIGN_KEY + month.format(MONTH_FORMATTER),
+                BitFieldSubCommands.create()
+                        .get(BitFieldSubCommands.BitFieldType.unsigned(BITS_PER_USER))
+                        .valueAt((long) userId * BITS_PER_USER));
+        if(values == null || values.isEmpty() || values.get(0) == null){
+            return 0;
+        }
+        return values.get(0);
+    }
+
+    /*归档：超过保留期的月份按32KB分段GETRANGE，非0的用户批量写入tb_sign，全部写完后删除位图；
+     * 写入按位或合并，中途失败重新执行不会出错；多节点只有一个执行，锁不主动释放
+     * */
+    private void archive() {
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_SIGN_ARCHIVE_KEY, "1",
+                Math.max(1, archiveHours * 60 - 5), TimeUnit.MINUTES);
+        if(!BooleanUtil.isTrue(locked)){
+            return;
+        }
+        YearMonth current = YearMonth.now();
+        for (int i = keepMonths; i < keepMonths + ARCHIVE_LOOKBACK_MONTHS; i++) {
+            YearMonth month = current.minusMonths(i);
+            try {
+                archiveMonth(month);
+            } catch (Exception e) {
+                log.error("签到位图归档失败，月份" + month, e);
+            }
+        }
+    }
+
+    private void archiveMonth(YearMonth month) {
+        byte[] key = (USER_SIGN_KEY + month.format(MONTH_FORMATTER)).getBytes(StandardCharsets.UTF_8);
+        Long length = stringRedisTemplate.execute(
+                (RedisCallback<Long>) connection -> connection.stringCommands().strLen(key));
+        if(length == null || length == 0){
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        long users = 0;
+        int chunkBytes = ARCHIVE_CHUNK_USERS * BITS_PER_USER / 8;
+        for (long start = 0; start < length; start += chunkBytes) {
+            long from = start;
+            byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                    connection.stringCommands().getRange(key, from, from + chunkBytes - 1));
+            if(bytes == null){
+                continue;
+            }
+            List<Sign> signs = new ArrayList<>();
+            long firstUserId = start / 4;
+            for (int i = 0; i + 3 < bytes.length; i += 4) {
+                long bits = ((bytes[i] & 0xFFL) << 24) | ((bytes[i + 1] & 0xFFL) << 16)
+                        | ((bytes[i + 2] & 0xFFL) << 8) | (bytes[i + 3] & 0xFFL);
+                if(bits == 0){
+                    continue;
+                }
+                signs.add(new Sign().setUserId(firstUserId + i / 4)
+                        .setYear(month.getYear()).setMonth(month.getMonthValue()).setSignBits(bits));
+                if(signs.size() >= ARCHIVE_INSERT_BATCH){
+                    baseMapper.upsertBatch(signs);
+                    users += signs.size();
+                    signs = new ArrayList<>();
+                }
+            }
+            if(!signs.isEmpty()){
+                baseMapper.upsertBatch(signs);
+                users += signs.size();
+            }
+        }
+        stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.keyCommands().del(key));
+        log.debug("签到位图归档完成，月份" + month + "，用户" + users + "个，耗时"
+                + (System.currentTimeMillis() - begin) + "ms");
+    }
+
+    private static String signKey(LocalDate date) {
+        return USER_SIGN_KEY + date.format(MONTH_FORMATTER);
+    }
+
+    private static long bitOffset(Long userId, int day) {
+        return userId * BITS_PER_USER + day - 1;
+    }
+
+    /*第day号对应的位，位图高位在前，1号为32位中的最高位*/
+    private static long dayMask(int day) {
+        return 1L << (BITS_PER_USER - day);
+    }
+}
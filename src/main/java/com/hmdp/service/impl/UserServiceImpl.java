@@ -1,9 +1,8 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.bean.copier.CopyOptions;
-import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
@@ -11,16 +10,23 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.LoginSessionManager;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -38,6 +44,20 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private LoginSessionManager loginSessionManager;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @PostConstruct
+    private void init(){
+        bloomFilterManager.register(BloomFilterManager.USER, getBaseMapper());
+    }
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 校验手机号格式, 若不符合，返回错误码
@@ -78,26 +98,35 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         }
         log.debug(user.toString());
 
-        //随机生成token作为登录令牌
-        String token = UUID.randomUUID().toString(true);
-
         //需要隐藏敏感信息，仅保存必要信息至session
         UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-        //User对象转为Hash存储,将user转为map,以便使用puAll()
-        // id为long，转换为map会有问题，需要手动或使用工具类将long改为string
-        Map<String, Object> userMap = BeanUtil.beanToMap(userDTO, new HashMap<>(),
-                CopyOptions.create().
-                        setIgnoreNullValue(true).
-                        setFieldValueEditor((fieldName, fieldValue) -> fieldValue.toString()));
-        //保存用户信息到redis
-        String tokenUser = LOGIN_USER_KEY+token;
-        stringRedisTemplate.opsForHash().putAll(tokenUser, userMap);
-        stringRedisTemplate.expire(tokenUser, LOGIN_USER_TTL, TimeUnit.MINUTES);
+        //保存用户信息到redis，随机生成token作为登录令牌
+        String token = loginSessionManager.createSession(userDTO);
 
         //返回token
         return Result.ok(token);
     }
 
+    @Override
+    public Result logout(String token) {
+        if(StrUtil.isNotBlank(token)){
+            loginSessionManager.logout(token);
+        }
+        return Result.ok();
+    }
+
+    /*批量查询用户的公开信息，经过缓存，未命中的用户一次查询数据库*/
+    @Override
+    public Map<Long, UserDTO> queryUserMap(Collection<Long> ids) {
+        if(ids.isEmpty()){
+            return Collections.emptyMap();
+        }
+        return cacheClient.queryBatch(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(
+                        User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     private User createUserWithPhone(String phone) {
         // 创建用户
         User user = new User();
@@ -105,6 +134,7 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setNickName(SystemConstants.USER_NICK_NAME_PREFIX +RandomUtil.randomString(10));
         // 保存用户
         save(user);
+        bloomFilterManager.put(BloomFilterManager.USER, user.getId());
         return user;
     }
 }
@@ -1,29 +1,69 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
-import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.LatencyStats;
 import com.hmdp.utils.RedisIDMaker;
+import com.hmdp.utils.SeckillStockGate;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillVoucherSnapshot;
+import com.hmdp.utils.TwoLevelLockManager;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_ORDER_SWEEP_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DEAD_LETTER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_FAILURES_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
 
 /**
  * <p>
@@ -37,7 +77,7 @@ import java.util.concurrent.Executors;
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
     @Resource
-    private ISeckillVoucherService seckillVoucherService;
+    private SeckillVoucherMapper seckillVoucherMapper;
 
     @Resource
     private RedisIDMaker redisIDMaker;
@@ -46,7 +86,22 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private SeckillVoucherSnapshot seckillVoucherSnapshot;
+
+    @Resource
+    private SeckillStockGate seckillStockGate;
+
+    @Resource
+    private TwoLevelLockManager twoLevelLockManager;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    /*一人一单锁的命名空间，redis中的锁key与原来一致*/
+    private static final String ORDER_LOCK_NAMESPACE = "lock:order";
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     static{
@@ -55,95 +110,429 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
-    /*阻塞队列*/
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024*1024);
+    /*消费线程数*/
+    @Value("${hmdp.seckill.order.workers:4}")
+    private int workers;
+
+    /*每批最多读取的订单数*/
+    @Value("${hmdp.seckill.order.batch-size:200}")
+    private int batchSize;
+
+    /*XREADGROUP阻塞等待的最长时间*/
+    @Value("${hmdp.seckill.order.block-ms:2000}")
+    private long blockMs;
+
+    /*本节点的消费者名称，为空时取主机名；重启后保持不变才能接管自己的pending-list*/
+    @Value("${hmdp.seckill.order.consumer:}")
+    private String consumerName;
 
-    /*线程池，用于开启独立线程处理阻塞队列中的订单*/
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    /*一条订单创建失败（数据库异常、违反约束）达到该次数，移入死信队列；获取锁失败、整批异常不计入*/
+    @Value("${hmdp.seckill.order.max-failures:5}")
+    private long maxFailures;
 
-    /*利用spring注解，SECKILL_ORDER_EXECUTOR初始化完毕后就载入VoucherOrderHandler*/
+    /*处理失败后重新读取pending-list的最长间隔，从RETRY_MIN_MS开始按2倍增加*/
+    @Value("${hmdp.seckill.order.retry-max-ms:5000}")
+    private long retryMaxMs;
+
+    /*pending-list中超过该时间没有再投递的消息，转给本节点的消费者处理（原消费者已停止或改名）*/
+    @Value("${hmdp.seckill.order.claim-idle-ms:60000}")
+    private long claimIdleMs;
+
+    /*检查pending-list的间隔*/
+    @Value("${hmdp.seckill.order.sweep-seconds:10}")
+    private long sweepSeconds;
+
+    /*每次检查的pending消息数*/
+    private static final int SWEEP_COUNT = 500;
+
+    /*处理失败后重新读取pending-list的最短间隔*/
+    private static final long RETRY_MIN_MS = 20;
+
+    /*handleRecords的结果：全部ACK；只剩获取锁失败的订单；有订单创建失败*/
+    private static final int BATCH_DONE = 0;
+    private static final int BATCH_LOCK_BUSY = 1;
+    private static final int BATCH_FAILED = 2;
+
+    /*线程池，用于开启多个独立线程消费消息队列中的订单*/
+    private ExecutorService seckillOrderExecutor;
+
+    /*本节点的消费者，接管的消息交给其中一个处理*/
+    private final List<VoucherOrderHandler> handlers = new ArrayList<>();
+
+    private final ScheduledExecutorService sweepExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("seckill-order-sweep-", true));
+
+    /*批次处理耗时、批次数、订单数、pending-list重试次数*/
+    private final LatencyStats batchLatency = new LatencyStats();
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder orderCount = new LongAdder();
+    private final LongAdder pendingRetryCount = new LongAdder();
+    private final LongAdder claimedCount = new LongAdder();
+    private final LongAdder deadLetterCount = new LongAdder();
+    /*获取用户锁失败、留待重试的订单数*/
+    private final LongAdder lockBusyCount = new LongAdder();
+
+    /*获取代理对象，保证批量创建订单的事务生效*/
+    @Autowired
+    private IVoucherOrderService voucherOrderService;
+
+    /*利用spring注解，注入完成后创建消费者组并启动workers个VoucherOrderHandler*/
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        createConsumerGroup();
+        if(StrUtil.isBlank(consumerName)){
+            consumerName = NetUtil.getLocalHostName();
+        }
+        seckillOrderExecutor = Executors.newFixedThreadPool(workers, new NamedThreadFactory("seckill-order-", true));
+        for (int i = 0; i < workers; i++) {
+            VoucherOrderHandler handler = new VoucherOrderHandler(consumerName + "-" + i);
+            handlers.add(handler);
+            seckillOrderExecutor.submit(handler);
+        }
+        sweepExecutor.scheduleWithFixedDelay(this::sweepPending, sweepSeconds, sweepSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        sweepExecutor.shutdownNow();
+        seckillOrderExecutor.shutdownNow();
+    }
+
+    /*检查整个消费者组的pending-list：
+     * 长时间没有再投递的消息（消费者已停止或改名）用XCLAIM转给本节点的消费者，并让它处理pending-list
+     * 多节点只有一个执行，锁不主动释放，一个周期内不会重复执行
+     * */
+    private void sweepPending(){
+        try {
+            Boolean locked = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(LOCK_SECKILL_ORDER_SWEEP_KEY, consumerName, sweepSeconds, TimeUnit.SECONDS);
+            if(!BooleanUtil.isTrue(locked)){
+                return;
+            }
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, Range.unbounded(), SWEEP_COUNT);
+            List<RecordId> idle = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                if(message.getElapsedTimeSinceLastDelivery().toMillis() >= claimIdleMs){
+                    idle.add(message.getId());
+                }
+            }
+            if(idle.isEmpty()){
+                return;
+            }
+            // XCLAIM带最小空闲时间，消息在此期间被重新投递时不会被接管
+            VoucherOrderHandler handler = handlers.get(ThreadLocalRandom.current().nextInt(handlers.size()));
+            List<MapRecord<String, Object, Object>> claimed = stringRedisTemplate.opsForStream().claim(
+                    SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, handler.consumer.getName(),
+                    Duration.ofMillis(claimIdleMs), idle.toArray(new RecordId[0]));
+            if(claimed != null && !claimed.isEmpty()){
+                claimedCount.add(claimed.size());
+                handler.recovering = true;
+            }
+        } catch (Exception e) {
+            log.error("检查订单pending-list失败", e);
+        }
+    }
+
+    /*复制到死信队列后ACK并删除，记录原消息id和原因，由人工或对账任务处理*/
+    private void deadLetter(MapRecord<String, Object, Object> record, String reason){
+        RecordId id = record.getId();
+        Map<Object, Object> value = new LinkedHashMap<>(record.getValue());
+        value.put("sourceId", id.getValue());
+        value.put("reason", reason);
+        stringRedisTemplate.opsForStream().add(MapRecord.create(SECKILL_ORDER_DEAD_LETTER_STREAM, value));
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, id);
+        stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_STREAM, id);
+        stringRedisTemplate.opsForHash().delete(SECKILL_ORDER_FAILURES_KEY, id.getValue());
+        deadLetterCount.increment();
+        log.error("订单消息已移入死信队列，id=" + id.getValue() + "，原因：" + reason);
+    }
+
+    /*XGROUP CREATE ... MKSTREAM，消费者组已存在时忽略*/
+    private void createConsumerGroup(){
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XGROUP",
+                    "CREATE".getBytes(StandardCharsets.UTF_8),
+                    SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8),
+                    SECKILL_ORDER_GROUP.getBytes(StandardCharsets.UTF_8),
+                    "0".getBytes(StandardCharsets.UTF_8),
+                    "MKSTREAM".getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            if(!StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "BUSYGROUP")){
+                throw e;
+            }
+        }
     }
 
     /*内部类，线程内容*/
     private class VoucherOrderHandler implements Runnable{
+
+        private final Consumer consumer;
+
+        /*启动时先处理pending-list中已读取但未确认的订单；接管其他消费者的消息后也会置为true*/
+        private volatile boolean recovering = true;
+
+        /*下一次重新读取pending-list前等待的时间，处理成功后恢复为最短间隔*/
+        private long retryDelayMs = RETRY_MIN_MS;
+
+        private VoucherOrderHandler(String name) {
+            this.consumer = Consumer.from(SECKILL_ORDER_GROUP, name);
+        }
+
         @Override
         public void run() {
-            while(true){
+            while(!Thread.currentThread().isInterrupted()){
                 try {
-                    // 1.获取队列中的订单信息
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    // 2.创建订单
-                    handleVoucherOrder(voucherOrder);
-
+                    // 1.获取消息队列中的一批订单信息
+                    // pending-list: XREADGROUP GROUP g1 c1 COUNT n STREAMS stream.orders 0
+                    // 新消息: XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> records = recovering
+                            ? stringRedisTemplate.opsForStream().read(consumer,
+                                StreamReadOptions.empty().count(batchSize),
+                                StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.from("0")))
+                            : stringRedisTemplate.opsForStream().read(consumer,
+                                StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(blockMs)),
+                                StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.lastConsumed()));
+                    if(records == null || records.isEmpty()){
+                        // pending-list已处理完，转为读取新消息
+                        recovering = false;
+                        continue;
+                    }
+                    if(recovering){
+                        pendingRetryCount.add(records.size());
+                    }
+                    // 2.批量创建订单，提交后再ACK，未ACK的订单留在pending-list中重试
+                    long begin = System.nanoTime();
+                    int result = handleRecords(records);
+                    batchLatency.record(System.nanoTime() - begin);
+                    batchCount.increment();
+                    orderCount.add(records.size());
+                    if(result == BATCH_DONE){
+                        retryDelayMs = RETRY_MIN_MS;
+                    } else if(result == BATCH_LOCK_BUSY){
+                        // 同一用户的订单正在其他线程或节点处理，很快会释放，短暂等待后重试，不增加退避
+                        recovering = true;
+                        Thread.sleep(RETRY_MIN_MS);
+                    } else {
+                        recovering = true;
+                        backoff();
+                    }
                 } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
                     log.error("处理订单异常", e);
+                    recovering = true;
+                    try {
+                        backoff();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
                 }
             }
         }
+
+        /*指数退避，数据库短暂不可用时不会频繁重读pending-list*/
+        private void backoff() throws InterruptedException {
+            Thread.sleep(retryDelayMs);
+            retryDelayMs = Math.min(retryDelayMs * 2, retryMaxMs);
+        }
+    }
+
+    /*处理一批消息，返回BATCH_DONE、BATCH_LOCK_BUSY或BATCH_FAILED*/
+    private int handleRecords(List<MapRecord<String, Object, Object>> records) {
+        Map<Long, MapRecord<String, Object, Object>> recordOfOrder = new HashMap<>(records.size() * 2);
+        List<VoucherOrder> batch = new ArrayList<>(records.size());
+        int deadLettered = 0;
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder voucherOrder;
+            try {
+                voucherOrder = toVoucherOrder(record.getValue());
+            } catch (RuntimeException e) {
+                // 格式错误的消息重试也不会成功，直接移入死信队列，不阻塞后面的消息
+                deadLetter(record, "消息格式错误");
+                deadLettered++;
+                continue;
+            }
+            recordOfOrder.put(voucherOrder.getId(), record);
+            batch.add(voucherOrder);
+        }
+        if(batch.isEmpty()){
+            return BATCH_DONE;
+        }
+        List<VoucherOrder> failed = new ArrayList<>();
+        List<VoucherOrder> handled = handleVoucherOrders(batch, failed);
+        // 获取锁失败的订单不是处理失败，不计入失败次数
+        // 创建失败的订单累计失败次数，达到上限后移入死信队列
+        for (VoucherOrder voucherOrder : failed) {
+            MapRecord<String, Object, Object> record = recordOfOrder.get(voucherOrder.getId());
+            Long failures = stringRedisTemplate.opsForHash()
+                    .increment(SECKILL_ORDER_FAILURES_KEY, record.getId().getValue(), 1);
+            if(failures != null && failures >= maxFailures){
+                deadLetter(record, "创建订单失败" + failures + "次");
+                deadLettered++;
+            }
+        }
+        if(!handled.isEmpty()){
+            RecordId[] acked = handled.stream().map(o -> recordOfOrder.get(o.getId()).getId()).toArray(RecordId[]::new);
+            // 确认并删除已入库的消息，stream长度即为积压量
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, acked);
+            stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_STREAM, acked);
+            stringRedisTemplate.opsForHash().delete(SECKILL_ORDER_FAILURES_KEY,
+                    Arrays.stream(acked).map(RecordId::getValue).toArray());
+        }
+        if(handled.size() + deadLettered == records.size()){
+            return BATCH_DONE;
+        }
+        return failed.isEmpty() ? BATCH_LOCK_BUSY : BATCH_FAILED;
+    }
+
+    private VoucherOrder toVoucherOrder(Map<Object, Object> value) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(Long.valueOf(value.get("id").toString()));
+        voucherOrder.setUserId(Long.valueOf(value.get("userId").toString()));
+        voucherOrder.setVoucherId(Long.valueOf(value.get("voucherId").toString()));
+        return voucherOrder;
     }
 
-    private IVoucherOrderService proxy;
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        Long voucherId = voucherOrder.getVoucherId();
-        //Redisson实现可重入锁
-        //创建锁对象，以 业务+用户ID 作为锁
-        RLock lock = redissonClient.getLock("lock:order" + userId);
-        //尝试获取锁
-        boolean getLock = lock.tryLock();
-        //判断
-        if(!getLock){
-            log.error("不允许重复下单");
-        }
-        //获取代理对象
+    /*返回加锁成功并已提交的订单，创建失败的订单加入failed*/
+    private List<VoucherOrder> handleVoucherOrders(List<VoucherOrder> batch, List<VoucherOrder> failed) {
+        //两级锁：本节点同一用户的订单先被本地锁挡住，拿到本地锁后再获取Redisson锁
+        //以 业务+用户ID 作为锁
+        List<TwoLevelLockManager.Handle> locks = new ArrayList<>(batch.size());
+        List<VoucherOrder> lockedOrders = new ArrayList<>(batch.size());
         try {
-            proxy.createVoucherOrder(voucherOrder);
+            for (VoucherOrder voucherOrder : batch) {
+                TwoLevelLockManager.Handle lock = twoLevelLockManager.tryLock(ORDER_LOCK_NAMESPACE, voucherOrder.getUserId());
+                //尝试获取锁，失败说明同一用户的订单正在其他线程或节点处理，跳过该订单，留待重试
+                if(lock == null){
+                    log.warn("用户" + voucherOrder.getUserId() + "的订单正在处理中，稍后重试，订单" + voucherOrder.getId());
+                    lockBusyCount.increment();
+                    continue;
+                }
+                locks.add(lock);
+                lockedOrders.add(voucherOrder);
+            }
+            if(lockedOrders.isEmpty()){
+                return lockedOrders;
+            }
+            try {
+                voucherOrderService.createVoucherOrders(lockedOrders);
+                return lockedOrders;
+            } catch (Exception e) {
+                // 整批回滚，逐个重新提交，一个订单失败不影响同批的其他订单
+                log.error("批量创建订单失败，逐个重试，共" + lockedOrders.size() + "个", e);
+                return createOneByOne(lockedOrders, failed);
+            }
         } finally {
-            lock.unlock();
+            locks.forEach(TwoLevelLockManager.Handle::unlock);
+        }
+    }
+
+    /*逐个提交，返回成功的订单；失败的加入failed，不ACK，留在pending-list中重试*/
+    private List<VoucherOrder> createOneByOne(List<VoucherOrder> orders, List<VoucherOrder> failed) {
+        List<VoucherOrder> created = new ArrayList<>(orders.size());
+        for (VoucherOrder voucherOrder : orders) {
+            try {
+                voucherOrderService.createVoucherOrders(Collections.singletonList(voucherOrder));
+                created.add(voucherOrder);
+            } catch (Exception e) {
+                log.error("创建订单失败，orderId=" + voucherOrder.getId(), e);
+                failed.add(voucherOrder);
+            }
         }
+        return created;
+    }
+
+    /*订单处理指标*/
+    public Map<String, Object> queryOrderMetrics(){
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("consumer", consumerName);
+        metrics.put("workers", workers);
+        metrics.put("queueDepth", stringRedisTemplate.opsForStream().size(SECKILL_ORDER_STREAM));
+        metrics.put("batches", batchCount.sum());
+        metrics.put("orders", orderCount.sum());
+        metrics.put("pendingRetries", pendingRetryCount.sum());
+        metrics.put("claimed", claimedCount.sum());
+        metrics.put("deadLettered", deadLetterCount.sum());
+        metrics.put("lockBusy", lockBusyCount.sum());
+        metrics.put("batchLatency", batchLatency.snapshot());
+        metrics.put("gate", seckillStockGate.queryGateMetrics());
+        metrics.put("shards", seckillStockShards.queryShardMetrics());
+        return metrics;
     }
 
     /*判断用户购买资格优化-lua脚本*/
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 优惠券不存在，直接返回
+        if(!bloomFilterManager.mightContain(BloomFilterManager.VOUCHER, voucherId)){
+            return Result.fail("优惠券不存在");
+        }
+        // 不在秒杀时间内，直接返回，不访问redis
+        int window = seckillVoucherSnapshot.check(voucherId);
+        if(window != SeckillVoucherSnapshot.OK){
+            return Result.fail(seckillFailMessage(window));
+        }
+        // 本节点已知售罄，或没有取到令牌，不访问redis
+        if(seckillStockGate.isSoldOut(voucherId)){
+            return Result.fail(seckillFailMessage(1));
+        }
+        if(!seckillStockGate.tryAcquire(voucherId)){
+            return Result.fail("当前抢购人数过多，请稍后再试");
+        }
         Long userId = UserHolder.getUser().getId();
-        // 1.执行lua脚本
-        Long res = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString()
-        );
+        // 订单id
+        long orderId = redisIDMaker.nextID("order");
+        // 1.执行lua脚本，有购买资格时把订单写入消息队列
+        int r;
+        int shards = seckillVoucherSnapshot.shardsOf(voucherId);
+        if(shards > 1){
+            // 1.1.库存已分片，只访问用户所在的分片，分片为空时向其他分片借库存
+            r = seckillStockShards.seckill(voucherId, shards, userId, orderId, seckillVoucherSnapshot.windowOf(voucherId));
+        } else {
+            // 1.2.未分片，在同一脚本中写入消息队列
+            Long res = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.singletonList(SECKILL_ORDER_STREAM),
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId)
+            );
+            r = res.intValue();
+        }
         // 2.判断结果
         // 2.1.不为0，代表没有购买资格
-        int r = res.intValue();
         if(r != 0){
-            return Result.fail(r == 1 ? "库存不足" : "不可重复下单");
+            if(r == 1){
+                // 库存key存在且库存不足才是售罄，通知所有节点，之后的请求不再执行脚本；key不存在（返回7）不标记
+                seckillStockGate.markSoldOut(voucherId);
+            }
+            return Result.fail(seckillFailMessage(r));
         }
-        // 2.2.为0，有购买资格，保存下单信息到阻塞队列
-        // 创建订单
-        VoucherOrder voucherOrder = new VoucherOrder();
-        // 订单id
-        long orderId = redisIDMaker.nextID("order");
-        voucherOrder.setId(orderId);
-        // 用户id
-        voucherOrder.setUserId(UserHolder.getUser().getId());
-        // 代金券id
-        voucherOrder.setVoucherId(voucherId);
-        this.save(voucherOrder);
-        // 加入阻塞队列
-        orderTasks.add(voucherOrder);
-        // 在主线程中获取代理对象，
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
-        // 3.3.返回订单id
+        // 2.2.为0，有购买资格，订单已保存到消息队列，由消费线程异步入库
+        // 3.返回订单id
         return Result.ok(orderId);
     }
 
 
+    /*lua脚本返回值：1库存不足，2重复下单，3未开始，4已结束，6库存已分片但本节点还不知道，7库存key不存在*/
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不可重复下单";
+            case SeckillVoucherSnapshot.NOT_STARTED:
+                return "秒杀尚未开始";
+            case 6:
+                return "当前抢购人数过多，请稍后再试";
+            case SeckillStockShards.STOCK_MISSING:
+                return "秒杀券库存尚未就绪，请稍后再试";
+            default:
+                return "秒杀已经结束";
+        }
+    }
+
     /*Java代码判断用户购买资格*/
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
@@ -186,25 +575,49 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 //    }
 
+    @Override
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        /*如果在方法内加锁，仍然可能存在单个用户并发问题，可能会调用多个本方法*/
-        //判断是否一人一单
-        //通过intern()从常量池中找字符串，避免每次锁的字符串对象都不一样
-        Long userId = UserHolder.getUser().getId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder).count();
-        if(count > 0){
-            log.error("超出可购买上限");
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1.按代金券分组，秒杀时一批订单通常只属于一个代金券
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        // 2.一人一单由(voucher_id, user_id)唯一索引保证，不再先查询；
+        // 重复的订单（批次内重复、消息重复投递）插入时被忽略，影响行数即为新订单数
+        Map<Long, Integer> counts = new LinkedHashMap<>();
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+            int inserted = getBaseMapper().insertIgnoreBatch(orders);
+            if(inserted < orders.size()){
+                log.error("超出可购买上限，voucherId=" + voucherId + "，重复订单数=" + (orders.size() - inserted));
+            }
+            if(inserted > 0){
+                counts.put(voucherId, inserted);
+            }
+        }
+        if(counts.isEmpty()){
             return;
         }
-        //减库存，添加乐观锁解决负数库存的问题
-        boolean success = seckillVoucherService.update().setSql("stock = stock - 1").
-                eq("voucher_id", voucherOrder).gt("stock", 0).update();
-        if(!success){
-            log.error("创建订单失败");
+        // 3.一条update扣减整批订单涉及的所有代金券库存，库存不足的不扣减，避免库存为负
+        TransactionStatus status = TransactionAspectSupport.currentTransactionStatus();
+        Object savepoint = status.createSavepoint();
+        int deducted = seckillVoucherMapper.deductStockBatch(counts);
+        if(deducted == counts.size()){
+            status.releaseSavepoint(savepoint);
             return;
         }
-        this.save(voucherOrder);
-        //返回订单ID
+        // 4.有代金券库存不足：回到扣减之前逐个扣减，不足的扣到0为止
+        status.rollbackToSavepoint(savepoint);
+        Map<Long, Integer> shortage = new LinkedHashMap<>();
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            if(seckillVoucherMapper.deductStockBatch(Collections.singletonMap(entry.getKey(), entry.getValue())) == 0){
+                shortage.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if(!shortage.isEmpty()){
+            seckillVoucherMapper.deductStockClamped(shortage);
+            // redis中已扣过库存，订单有效，数据库库存与redis不一致
+            log.error("数据库库存不足，已扣减到0，库存与redis不一致，扣减数量=" + shortage);
+        }
     }
 }
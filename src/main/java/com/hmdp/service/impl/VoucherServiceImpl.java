@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,14 +8,29 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillVoucherSnapshot;
+import com.hmdp.utils.TransactionHooks;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -33,12 +49,134 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private SeckillVoucherSnapshot seckillVoucherSnapshot;
+
+    /*新增秒杀券未指定分片数时的默认库存分片数，1表示不分片*/
+    @Value("${hmdp.seckill.shard.default-count:1}")
+    private int defaultShards;
+
+    /*批量查询一次最多的店铺数*/
+    private static final int MAX_BATCH_SHOPS = 100;
+
+    /*秒杀券类型*/
+    private static final int SECKILL_TYPE = 1;
+
+    @PostConstruct
+    private void init(){
+        bloomFilterManager.register(BloomFilterManager.VOUCHER, getBaseMapper());
+        //未结束或刚结束的秒杀券，加载到本地快照
+        seckillVoucherSnapshot.register(() -> seckillVoucherService.query()
+                .gt("end_time", LocalDateTime.now().minusDays(1)).list());
+    }
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
+        // 店铺不存在
+        if(!bloomFilterManager.mightContain(BloomFilterManager.SHOP, shopId)){
+            return Result.ok(Collections.emptyList());
+        }
         // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        List<Voucher> vouchers = queryVoucherLists(Collections.singletonList(shopId)).get(shopId);
         // 返回结果
-        return Result.ok(vouchers);
+        return Result.ok(vouchers == null ? Collections.emptyList() : vouchers);
+    }
+
+    /*列表页一次查询多个店铺的优惠券，key为店铺id*/
+    @Override
+    public Result queryVoucherOfShops(List<Long> shopIds) {
+        if(shopIds.size() > MAX_BATCH_SHOPS){
+            return Result.fail("一次最多查询" + MAX_BATCH_SHOPS + "个店铺");
+        }
+        List<Long> ids = shopIds.stream().distinct()
+                .filter(id -> bloomFilterManager.mightContain(BloomFilterManager.SHOP, id))
+                .collect(Collectors.toList());
+        Map<Long, List<Voucher>> lists = queryVoucherLists(ids);
+        Map<Long, List<Voucher>> result = new LinkedHashMap<>();
+        for (Long shopId : shopIds) {
+            result.put(shopId, lists.getOrDefault(shopId, Collections.emptyList()));
+        }
+        return Result.ok(result);
+    }
+
+    /*优惠券列表按店铺缓存：本地缓存 -> 一次MGET -> 未命中的店铺一次查询数据库；
+     * 缓存中的秒杀库存是写入时的值，返回前用一次MGET读取redis中的实时库存覆盖，分片库存取各分片之和
+     * */
+    private Map<Long, List<Voucher>> queryVoucherLists(List<Long> shopIds) {
+        if(shopIds.isEmpty()){
+            return Collections.emptyMap();
+        }
+        Map<Long, List<Voucher>> cached = cacheClient.queryListBatch(CACHE_VOUCHER_LIST_KEY, shopIds, Voucher.class,
+                this::loadVoucherLists, CACHE_VOUCHER_LIST_TTL, TimeUnit.MINUTES);
+        // 1.收集秒杀券的库存key
+        List<Long> seckillIds = new ArrayList<>();
+        List<String> stockKeys = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        for (List<Voucher> vouchers : cached.values()) {
+            for (Voucher voucher : vouchers) {
+                if(voucher.getType() != null && voucher.getType() == SECKILL_TYPE){
+                    seckillIds.add(voucher.getId());
+                    offsets.add(stockKeys.size());
+                    stockKeys.addAll(SeckillStockShards.stockKeys(voucher.getId(),
+                            seckillVoucherSnapshot.shardsOf(voucher.getId())));
+                }
+            }
+        }
+        offsets.add(stockKeys.size());
+        Map<Long, Long> stocks = new HashMap<>(seckillIds.size() * 2);
+        if(!stockKeys.isEmpty()){
+            List<String> values = stringRedisTemplate.opsForValue().multiGet(stockKeys);
+            for (int i = 0; values != null && i < seckillIds.size(); i++) {
+                Long stock = SeckillStockShards.sumStock(values.subList(offsets.get(i), offsets.get(i + 1)));
+                if(stock != null){
+                    stocks.put(seckillIds.get(i), stock);
+                }
+            }
+        }
+        // 2.缓存中的对象可能被其他请求共享，复制后再覆盖库存
+        Map<Long, List<Voucher>> result = new HashMap<>(cached.size() * 2);
+        cached.forEach((shopId, vouchers) -> {
+            List<Voucher> list = new ArrayList<>(vouchers.size());
+            for (Voucher voucher : vouchers) {
+                Long stock = stocks.get(voucher.getId());
+                if(stock == null){
+                    list.add(voucher);
+                    continue;
+                }
+                Voucher copy = BeanUtil.copyProperties(voucher, Voucher.class);
+                copy.setStock(stock.intValue());
+                list.add(copy);
+            }
+            result.put(shopId, list);
+        });
+        return result;
+    }
+
+    /*一次查询多个店铺的优惠券，没有优惠券的店铺返回空列表*/
+    private Map<Long, List<Voucher>> loadVoucherLists(List<Long> shopIds) {
+        Map<Long, List<Voucher>> result = new HashMap<>(shopIds.size() * 2);
+        for (Long shopId : shopIds) {
+            result.put(shopId, new ArrayList<>());
+        }
+        for (Voucher voucher : getBaseMapper().queryVoucherOfShops(shopIds)) {
+            result.get(voucher.getShopId()).add(voucher);
+        }
+        return result;
+    }
+
+    @Override
+    public void addVoucher(Voucher voucher) {
+        // 保存优惠券
+        save(voucher);
+        bloomFilterManager.put(BloomFilterManager.VOUCHER, voucher.getId());
+        // 店铺的优惠券列表已变化，在事务中调用时提交后再删除
+        TransactionHooks.afterCommit(() -> cacheClient.delete(CACHE_VOUCHER_LIST_KEY + voucher.getShopId()));
     }
 
     @Override
@@ -46,15 +184,22 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     public void addSeckillVoucher(Voucher voucher) {
         // 保存优惠券
         save(voucher);
+        // 提交后再加入布隆过滤器，回滚的id不会留在过滤器中
+        TransactionHooks.afterCommit(() -> bloomFilterManager.put(BloomFilterManager.VOUCHER, voucher.getId()));
         // 保存秒杀信息
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
-
-        //在redis中保存库存信息
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        //库存分片数，不超过库存数
+        int shards = voucher.getShards() == null ? defaultShards : voucher.getShards();
+        shards = Math.max(1, Math.min(Math.min(shards, SeckillStockShards.MAX_SHARDS), voucher.getStock()));
+        seckillVoucher.setShards(shards);
         seckillVoucherService.save(seckillVoucher);
+        //提交后在redis中保存库存（分片时平均分到各分片）和秒杀时间，由lua脚本判断，并通知所有节点更新本地快照
+        seckillVoucherSnapshot.publish(seckillVoucher);
+        // 店铺的优惠券列表已变化，提交后再删除，否则并发查询可能在提交前重新缓存旧列表
+        TransactionHooks.afterCommit(() -> cacheClient.delete(CACHE_VOUCHER_LIST_KEY + voucher.getShopId()));
     }
 }
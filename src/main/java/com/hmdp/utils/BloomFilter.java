@@ -0,0 +1,52 @@
+package com.hmdp.utils;
+
+import java.util.Collection;
+
+/*布隆过滤器，按id判断数据是否可能存在，不存在则一定不存在*/
+public interface BloomFilter {
+
+    boolean mightContain(long id);
+
+    void put(long id);
+
+    void putAll(Collection<Long> ids);
+
+    /*位数组长度*/
+    long bitSize();
+
+    /*哈希函数个数*/
+    int hashCount();
+
+    /*位数组占用的内存字节数*/
+    default long memoryBytes() {
+        return (bitSize() + 7) / 8;
+    }
+
+    /*根据预计元素数量和误判率计算位数组长度：m = -n*ln(p) / (ln2)^2*/
+    static long optimalBitSize(long expectedInsertions, double fpp) {
+        return Math.max(64, (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+    }
+
+    /*根据位数组长度计算哈希函数个数：k = m/n * ln2*/
+    static int optimalHashCount(long expectedInsertions, long bitSize) {
+        return Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+    }
+
+    /*双重哈希计算k个位下标：h1 + i*h2*/
+    static long[] offsets(long id, long bitSize, int hashCount) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        long[] offsets = new long[hashCount];
+        for (int i = 0; i < hashCount; i++) {
+            offsets[i] = Math.floorMod(h1 + i * h2, bitSize);
+        }
+        return offsets;
+    }
+
+    /*splitmix64的混合函数，把连续的id打散*/
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,273 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+import static com.hmdp.utils.RedisConstants.BLOOM_SYNC_CHANNEL;
+
+/*布隆过滤器管理：启动时从数据库按id分页构建，新增数据时增量写入，定期重建
+ * local：每个节点一份进程内位图，新增通过pub/sub广播给所有节点
+ * redis：所有节点共享一份redis位图，由抢到锁的节点负责重建
+ * */
+@Slf4j
+@Component
+public class BloomFilterManager {
+
+    public static final String SHOP = "shop";
+    public static final String USER = "user";
+    public static final String VOUCHER = "voucher";
+
+    private static final int PAGE_SIZE = 5000;
+    private static final long MIN_EXPECTED_INSERTIONS = 10000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final Environment environment;
+    private final boolean enabled;
+    private final boolean redisMode;
+    private final double defaultFpp;
+    private final long rebuildMinutes;
+
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService rebuildExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("bloom-rebuild-", true));
+
+    public BloomFilterManager(StringRedisTemplate stringRedisTemplate,
+                              RedisMessageListenerContainer listenerContainer,
+                              Environment environment,
+                              @Value("${hmdp.bloom.enabled:false}") boolean enabled,
+                              @Value("${hmdp.bloom.type:local}") String type,
+                              @Value("${hmdp.bloom.default-fpp:0.01}") double defaultFpp,
+                              @Value("${hmdp.bloom.rebuild-minutes:360}") long rebuildMinutes) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.environment = environment;
+        this.enabled = enabled;
+        this.redisMode = "redis".equalsIgnoreCase(type);
+        this.defaultFpp = defaultFpp;
+        this.rebuildMinutes = rebuildMinutes;
+        if(enabled){
+            listenerContainer.addMessageListener((message, pattern) ->
+                    onSyncMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                    new ChannelTopic(BLOOM_SYNC_CHANNEL));
+        }
+    }
+
+    /*注册一张表，按主键id分页读取*/
+    public <T> void register(String name, BaseMapper<T> mapper) {
+        register(name,
+                () -> mapper.selectCount(null).longValue(),
+                (lastId, limit) -> mapper.selectObjs(new QueryWrapper<T>()
+                                .select("id").gt("id", lastId).orderByAsc("id").last("limit " + limit))
+                        .stream().map(o -> ((Number) o).longValue()).collect(Collectors.toList()));
+    }
+
+    public void register(String name, Supplier<Long> counter, BiFunction<Long, Integer, List<Long>> pageLoader) {
+        registrations.put(name, new Registration(name, counter, pageLoader,
+                environment.getProperty("hmdp.bloom.fpp." + name, Double.class, defaultFpp)));
+    }
+
+    /*所有服务注册完成后异步构建，之后定期重建*/
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if(!enabled){
+            return;
+        }
+        rebuildExecutor.execute(() -> registrations.values().forEach(r -> {
+            // redis模式下其他节点已经构建过，直接使用
+            if(redisMode && refreshRedisFilter(r)){
+                return;
+            }
+            rebuild(r);
+        }));
+        rebuildExecutor.scheduleWithFixedDelay(() -> registrations.values().forEach(this::rebuild),
+                rebuildMinutes, rebuildMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rebuildExecutor.shutdownNow();
+    }
+
+    /*判断id是否可能存在；未开启或尚未构建完成时一律放行*/
+    public boolean mightContain(String name, long id) {
+        Registration registration = registrations.get(name);
+        if(registration == null || registration.filter == null){
+            return true;
+        }
+        return registration.filter.mightContain(id);
+    }
+
+    /*新增数据后写入过滤器*/
+    public void put(String name, long id) {
+        Registration registration = registrations.get(name);
+        if(registration == null || registration.filter == null){
+            return;
+        }
+        registration.filter.put(id);
+        registration.elements.incrementAndGet();
+        if(!redisMode){
+            stringRedisTemplate.convertAndSend(BLOOM_SYNC_CHANNEL, "add:" + name + ":" + id);
+        }
+    }
+
+    private void onSyncMessage(String message) {
+        String[] parts = message.split(":");
+        Registration registration = registrations.get(parts[1]);
+        if(registration == null){
+            return;
+        }
+        if("add".equals(parts[0]) && registration.filter != null){
+            registration.filter.put(Long.parseLong(parts[2]));
+        } else if("rebuilt".equals(parts[0]) && redisMode){
+            refreshRedisFilter(registration);
+        }
+    }
+
+    private void rebuild(Registration registration) {
+        String lockKey = BLOOM_KEY + registration.name + ":lock";
+        try {
+            if(redisMode){
+                // 每个周期只需要一个节点重建redis位图，锁不主动释放，到期后进入下个周期
+                Boolean locked = stringRedisTemplate.opsForValue()
+                        .setIfAbsent(lockKey, "1", Math.max(1, rebuildMinutes - 1), TimeUnit.MINUTES);
+                if(!BooleanUtil.isTrue(locked)){
+                    refreshRedisFilter(registration);
+                    return;
+                }
+            }
+            long begin = System.currentTimeMillis();
+            long expected = Math.max(registration.counter.get() * 2, MIN_EXPECTED_INSERTIONS);
+            BloomFilter building = redisMode
+                    ? RedisBloomFilter.create(stringRedisTemplate,
+                        BLOOM_KEY + registration.name + ":" + begin, expected, registration.fpp)
+                    : new LocalBloomFilter(expected, registration.fpp);
+            long[] scanned = new long[]{0, 0};
+            scan(registration, building, scanned);
+            // 替换为新的过滤器
+            BloomFilter old = registration.filter;
+            registration.filter = building;
+            registration.expectedInsertions = expected;
+            registration.lastRebuildTime = LocalDateTime.now();
+            if(redisMode){
+                RedisBloomFilter filter = (RedisBloomFilter) building;
+                stringRedisTemplate.opsForValue().set(BLOOM_KEY + registration.name,
+                        filter.getKey() + "|" + filter.bitSize() + "|" + filter.hashCount());
+                if(old instanceof RedisBloomFilter){
+                    // 旧位图保留一段时间，等其他节点切换完成
+                    stringRedisTemplate.expire(((RedisBloomFilter) old).getKey(), 10, TimeUnit.MINUTES);
+                }
+                stringRedisTemplate.convertAndSend(BLOOM_SYNC_CHANNEL, "rebuilt:" + registration.name);
+            }
+            // 扫描期间新增的数据id更大，补扫一次，避免漏掉
+            scan(registration, building, scanned);
+            registration.elements.set(scanned[1]);
+            log.info("布隆过滤器{}构建完成，元素{}个，耗时{}ms", registration.name, scanned[1],
+                    System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("布隆过滤器" + registration.name + "构建失败", e);
+            if(redisMode){
+                stringRedisTemplate.delete(lockKey);
+            }
+        }
+    }
+
+    /*从scanned[0]之后按id分页读取并写入过滤器，scanned[1]累计元素数*/
+    private void scan(Registration registration, BloomFilter filter, long[] scanned) {
+        while (true) {
+            List<Long> ids = registration.pageLoader.apply(scanned[0], PAGE_SIZE);
+            if(ids.isEmpty()){
+                return;
+            }
+            filter.putAll(ids);
+            scanned[0] = ids.get(ids.size() - 1);
+            scanned[1] += ids.size();
+        }
+    }
+
+    /*读取redis中当前位图的指针：key|位数|哈希个数*/
+    private boolean refreshRedisFilter(Registration registration) {
+        String pointer = stringRedisTemplate.opsForValue().get(BLOOM_KEY + registration.name);
+        if(StrUtil.isBlank(pointer)){
+            return false;
+        }
+        String[] parts = pointer.split("\\|");
+        BloomFilter current = registration.filter;
+        if(current instanceof RedisBloomFilter && ((RedisBloomFilter) current).getKey().equals(parts[0])){
+            return true;
+        }
+        registration.filter = new RedisBloomFilter(stringRedisTemplate, parts[0],
+                Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+        registration.lastRebuildTime = LocalDateTime.now();
+        return true;
+    }
+
+    /*内存占用报告*/
+    public List<Map<String, Object>> queryMemoryReport() {
+        List<Map<String, Object>> report = new ArrayList<>();
+        for (Registration registration : registrations.values()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("name", registration.name);
+            item.put("type", redisMode ? "redis" : "local");
+            item.put("fpp", registration.fpp);
+            BloomFilter filter = registration.filter;
+            if(filter != null){
+                item.put("expectedInsertions", registration.expectedInsertions);
+                item.put("elements", registration.elements.get());
+                item.put("bits", filter.bitSize());
+                item.put("hashes", filter.hashCount());
+                item.put("memoryBytes", filter.memoryBytes());
+                item.put("lastRebuildTime", registration.lastRebuildTime);
+            }
+            report.add(item);
+        }
+        return report;
+    }
+
+    private static class Registration {
+        private final String name;
+        private final Supplier<Long> counter;
+        private final BiFunction<Long, Integer, List<Long>> pageLoader;
+        private final double fpp;
+        private volatile BloomFilter filter;
+        private volatile long expectedInsertions;
+        private final AtomicLong elements = new AtomicLong();
+        private volatile LocalDateTime lastRebuildTime;
+
+        private Registration(String name, Supplier<Long> counter,
+                             BiFunction<Long, Integer, List<Long>> pageLoader, double fpp) {
+            this.name = name;
+            this.counter = counter;
+            this.pageLoader = pageLoader;
+            this.fpp = fpp;
+        }
+    }
+}
@@ -1,21 +1,43 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.lang.func.Func;
+import cn.hutool.core.thread.NamedThreadFactory;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
-import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -25,102 +47,518 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    /*缓存值的编解码*/
+    private final CacheCodec codec;
+
+    /*本地一级缓存，未开启时为null*/
+    private final Cache<String, LocalEntry> localCache;
+
+    /*本地缓存的最长有效期，实际有效期取它与redis有效期中较小的一个*/
+    private final long localMaxTtlNanos;
+
+    /*redis二级缓存的命中统计*/
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder redisNullHits = new LongAdder();
+    private final LongAdder redisMisses = new LongAdder();
+
+    /*缓存查询的标记值：空值、未命中*/
+    private static final Object NULL = new Object();
+    private static final Object MISS = new Object();
+
+    /*正在加载中的key，同一个key的并发请求共享同一个结果*/
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> loadingFutures = new ConcurrentHashMap<>();
+
+    /*等待其他节点加载完成的信号*/
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> loadedSignals = new ConcurrentHashMap<>();
+
+    /*未抢到互斥锁时等待其他节点加载的最长时间*/
+    private final long mutexWaitMillis;
+
+    /*查询数据库次数、共享他人加载结果的次数*/
+    private final LongAdder dbLoads = new LongAdder();
+    private final LongAdder singleFlightShared = new LongAdder();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisMessageListenerContainer listenerContainer,
+                       CacheCodec codec,
+                       @Value("${hmdp.cache.local.enabled:false}") boolean localEnabled,
+                       @Value("${hmdp.cache.local.maximum-size:10000}") long localMaximumSize,
+                       @Value("${hmdp.cache.local.ttl-seconds:60}") long localTtlSeconds,
+                       @Value("${hmdp.cache.mutex-wait-ms:500}") long mutexWaitMillis) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.codec = codec;
+        this.mutexWaitMillis = mutexWaitMillis;
+        // 订阅加载完成的消息，唤醒等待的线程
+        listenerContainer.addMessageListener((message, pattern) -> {
+            CompletableFuture<Void> signal = loadedSignals.get(new String(message.getBody(), StandardCharsets.UTF_8));
+            if(signal != null){
+                signal.complete(null);
+            }
+        }, new ChannelTopic(CACHE_LOADED_CHANNEL));
+        this.localMaxTtlNanos = TimeUnit.SECONDS.toNanos(localTtlSeconds);
+        if(localEnabled){
+            this.localCache = Caffeine.newBuilder()
+                    .maximumSize(localMaximumSize)
+                    .expireAfter(new LocalEntryExpiry())
+                    .recordStats()
+                    .build();
+            // 订阅失效消息，其他节点修改数据后清除本地缓存
+            listenerContainer.addMessageListener((message, pattern) ->
+                    localCache.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                    new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        } else {
+            this.localCache = null;
+        }
+    }
+
+    /*删除缓存，并广播给所有节点清除本地缓存*/
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        if(localCache != null){
+            localCache.invalidate(key);
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        }
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setBytes(key, codec.encode(value), time, unit);
     }
 
     //适用于逻辑过期
+    //redis中的实际有效期为逻辑有效期的2倍，逻辑过期后仍能返回旧数据，不再刷新的key最终会被清理
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
         RedisData redisData = new RedisData();
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData), time, unit);
+        setBytes(key, codec.encode(redisData), time * 2, unit);
+    }
+
+    /*读取列表缓存，未命中或无法解析时返回null*/
+    public <R> List<R> getList(String key, Class<R> type){
+        byte[] bytes = getBytes(key);
+        if(bytes == null || bytes.length == 0){
+            return null;
+        }
+        try {
+            return codec.decodeList(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存解析失败，key={}，{}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    /*批量查询：本地缓存 -> 一次MGET -> 一次批量查询数据库 -> 一次pipeline写回
+     * 无论ids有多少个，最多访问redis两次、数据库一次；数据库不存在的id写入空值，返回结果中不包含
+     * */
+    public <R, ID> Map<ID, R> queryBatch(
+            String keyPrefix, Collection<ID> ids, Class<R> type, Function<List<ID>, Map<ID, R>> dbFallback,
+            Long time, TimeUnit unit){
+        return doQueryBatch(keyPrefix, ids, bytes -> codec.decode(bytes, type), dbFallback, time, unit);
+    }
+
+    /*批量查询列表，与queryBatch相同；dbFallback对没有数据的id应返回空列表，缓存空列表而不是空值*/
+    public <R, ID> Map<ID, List<R>> queryListBatch(
+            String keyPrefix, Collection<ID> ids, Class<R> type, Function<List<ID>, Map<ID, List<R>>> dbFallback,
+            Long time, TimeUnit unit){
+        return doQueryBatch(keyPrefix, ids, bytes -> codec.decodeList(bytes, type), dbFallback, time, unit);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R, ID> Map<ID, R> doQueryBatch(
+            String keyPrefix, Collection<ID> ids, Function<byte[], R> decoder, Function<List<ID>, Map<ID, R>> dbFallback,
+            Long time, TimeUnit unit){
+        Map<ID, R> result = new HashMap<>(ids.size() * 2);
+        List<ID> remoteIds = new ArrayList<>();
+        //先查本地缓存
+        for (ID id : ids) {
+            LocalEntry entry = localCache == null ? null : localCache.getIfPresent(keyPrefix + id);
+            if(entry == null){
+                remoteIds.add(id);
+            } else if(entry.value != null){
+                result.put(id, (R) entry.value);
+            }
+        }
+        if(remoteIds.isEmpty()){
+            return result;
+        }
+        //一次MGET查询redis
+        byte[][] rawKeys = new byte[remoteIds.size()][];
+        for (int i = 0; i < remoteIds.size(); i++) {
+            rawKeys[i] = (keyPrefix + remoteIds.get(i)).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = stringRedisTemplate.execute(
+                (RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            if(bytes == null){
+                redisMisses.increment();
+                missIds.add(id);
+            } else if(bytes.length == 0){
+                redisNullHits.increment();
+                putLocal(keyPrefix + id, null, TimeUnit.MINUTES.toNanos(CACHE_NULL_TTL));
+            } else {
+                try {
+                    R r = decoder.apply(bytes);
+                    redisHits.increment();
+                    putLocal(keyPrefix + id, r, unit.toNanos(time));
+                    result.put(id, r);
+                } catch (RuntimeException e) {
+                    log.warn("缓存解析失败，key={}，{}", keyPrefix + id, e.getMessage());
+                    missIds.add(id);
+                }
+            }
+        }
+        if(missIds.isEmpty()){
+            return result;
+        }
+        //一次批量查询数据库，pipeline写回redis
+        Map<ID, R> loaded = dbFallback.apply(missIds);
+        dbLoads.increment();
+        Expiration expiration = Expiration.from(time, unit);
+        Expiration nullExpiration = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                byte[] key = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                if(r == null){
+                    connection.stringCommands().set(key, new byte[0], nullExpiration, RedisStringCommands.SetOption.upsert());
+                } else {
+                    connection.stringCommands().set(key, codec.encode(r), expiration, RedisStringCommands.SetOption.upsert());
+                }
+            }
+            return null;
+        });
+        for (ID id : missIds) {
+            R r = loaded.get(id);
+            putLocal(keyPrefix + id, r, r == null ? TimeUnit.MINUTES.toNanos(CACHE_NULL_TTL) : unit.toNanos(time));
+            if(r != null){
+                result.put(id, r);
+            }
+        }
+        return result;
     }
 
     //使用泛型，可查询任何类型的对象
     public <R, ID> R queryWithPassTrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
             Long time, TimeUnit unit){
-        //根据id查询redis
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //存在，返回redis数据
-        if(StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json, type);
-        }
-        //不存在或者空值，先判断是否为空值
-        if("".equals(json) ){
-            return null;
+        //先查本地缓存，再查redis，命中则直接返回（包括空值）
+        Object cached = getCached(key, type, time, unit);
+        if(cached != MISS){
+            return unwrap(cached, type);
         }
 
         //不存在，去数据库查询，此处需要调用者传递函数
         R r = dbFallback.apply(id);
+        dbLoads.increment();
+        //数据库不存在时写入空值，存在则r转为json存入redis，然后返回
+        writeCache(key, r, time, unit);
+        return r;
+    }
+
+    /*解决缓存击穿（1个热点key）-互斥锁
+     * 同一节点内，同一个key的并发未命中共享一个CompletableFuture，只有一个线程去加载；
+     * 各节点的加载线程再竞争redis互斥锁，集群内只有一个线程查询数据库，
+     * 未抢到锁的节点等待加载完成的广播后读取redis，不再休眠重试
+     * */
+    public <R, ID> R queryWithMutex(
+            String keyPrefix, String lockPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+            Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        Object cached = getCached(key, type, time, unit);
+        if(cached != MISS){
+            return unwrap(cached, type);
+        }
+        //未命中，已有线程在加载时等待它的结果
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = loadingFutures.putIfAbsent(key, future);
+        if(inFlight != null){
+            singleFlightShared.increment();
+            try {
+                return unwrap(inFlight.join(), type);
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            R r = loadWithLock(key, lockPrefix + id, id, type, dbFallback, time, unit);
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loadingFutures.remove(key, future);
+        }
+    }
+
+    private <R, ID> R loadWithLock(
+            String key, String lockKey, ID id, Class<R> type, Function<ID, R> dbFallback,
+            Long time, TimeUnit unit){
+        //获取互斥锁成功，再次检查redis后查询数据库
+        if(tryLock(lockKey)){
+            try {
+                Object cached = getFromRedis(key, type, time, unit);
+                if(cached != MISS){
+                    return unwrap(cached, type);
+                }
+                R r = dbFallback.apply(id);
+                dbLoads.increment();
+                writeCache(key, r, time, unit);
+                return r;
+            } finally {
+                unLock(lockKey);
+                //通知其他节点加载完成
+                stringRedisTemplate.convertAndSend(CACHE_LOADED_CHANNEL, key);
+            }
+        }
+        //获取互斥锁失败，说明其他节点正在加载，等待加载完成的通知
+        CompletableFuture<Void> signal = loadedSignals.computeIfAbsent(key, k -> new CompletableFuture<>());
+        try {
+            //注册后再查一次，避免通知已经错过
+            Object cached = getFromRedis(key, type, time, unit);
+            if(cached != MISS){
+                return unwrap(cached, type);
+            }
+            signal.get(mutexWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.debug("等待缓存加载超时，key={}", key);
+        } finally {
+            loadedSignals.remove(key, signal);
+        }
+        Object cached = getFromRedis(key, type, time, unit);
+        if(cached != MISS){
+            return unwrap(cached, type);
+        }
+        //等待超时仍未命中，自行查询数据库
+        R r = dbFallback.apply(id);
+        dbLoads.increment();
+        writeCache(key, r, time, unit);
+        return r;
+    }
+
+    /*依次查询本地缓存和redis，返回缓存值、NULL（空值）或MISS（未命中）*/
+    private Object getCached(String key, Class<?> type, Long time, TimeUnit unit){
+        if(localCache != null){
+            LocalEntry entry = localCache.getIfPresent(key);
+            if(entry != null){
+                return entry.value == null ? NULL : entry.value;
+            }
+        }
+        return getFromRedis(key, type, time, unit);
+    }
+
+    private Object getFromRedis(String key, Class<?> type, Long time, TimeUnit unit){
+        //根据key查询redis
+        byte[] bytes = getBytes(key);
+        //存在，返回redis数据
+        if(bytes != null && bytes.length > 0){
+            Object r;
+            try {
+                r = codec.decode(bytes, type);
+            } catch (RuntimeException e) {
+                //无法解析（如编码切换后未开启迁移模式），按未命中处理，重新加载后覆盖
+                log.warn("缓存解析失败，key={}，{}", key, e.getMessage());
+                redisMisses.increment();
+                return MISS;
+            }
+            redisHits.increment();
+            putLocal(key, r, unit.toNanos(time));
+            return r;
+        }
+        //不存在或者空值，先判断是否为空值
+        if(bytes != null){
+            redisNullHits.increment();
+            putLocal(key, null, TimeUnit.MINUTES.toNanos(CACHE_NULL_TTL));
+            return NULL;
+        }
+        redisMisses.increment();
+        return MISS;
+    }
 
-        //数据库不存在，返回错误码
+    /*数据库不存在时写入空值，否则写入数据*/
+    private void writeCache(String key, Object r, Long time, TimeUnit unit){
         if(r == null){
-            //写入空值
             stringRedisTemplate.opsForValue().set(key, "",CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
+            putLocal(key, null, TimeUnit.MINUTES.toNanos(CACHE_NULL_TTL));
+            return;
         }
-
-        //数据库存在，r转为json，存入redis并返回
         this.set(key, r, time, unit);
-        return r;
+        putLocal(key, r, unit.toNanos(time));
     }
 
+    private static <R> R unwrap(Object cached, Class<R> type){
+        return cached == NULL || cached == null ? null : type.cast(cached);
+    }
 
-    /*线程池*/
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /*写入本地缓存，本地缓存中的对象为共享实例，调用方不应修改*/
+    private void putLocal(String key, Object value, long ttlNanos){
+        if(localCache != null){
+            localCache.put(key, new LocalEntry(value, Math.min(ttlNanos, localMaxTtlNanos)));
+        }
+    }
+
+    /*两级缓存的命中、未命中和淘汰统计*/
+    public Map<String, Object> queryCacheMetrics(){
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        if(localCache != null){
+            CacheStats stats = localCache.stats();
+            Map<String, Object> local = new LinkedHashMap<>();
+            local.put("size", localCache.estimatedSize());
+            local.put("hits", stats.hitCount());
+            local.put("misses", stats.missCount());
+            local.put("evictions", stats.evictionCount());
+            local.put("hitRate", stats.hitRate());
+            metrics.put("local", local);
+        }
+        Map<String, Object> redis = new LinkedHashMap<>();
+        redis.put("hits", redisHits.sum());
+        redis.put("nullHits", redisNullHits.sum());
+        redis.put("misses", redisMisses.sum());
+        metrics.put("redis", redis);
+        metrics.put("codec", codec.name());
+        metrics.put("dbLoads", dbLoads.sum());
+        metrics.put("singleFlightShared", singleFlightShared.sum());
+        return metrics;
+    }
+
+    /*缓存重建线程池：线程数和队列都有上限，队列满时放弃本次重建，由之后的请求或预热任务重试*/
+    private static final ExecutorService CACHE_REBUILD_EXECUTOR = new ThreadPoolExecutor(2, 10,
+            60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(256), new NamedThreadFactory("cache-rebuild-", true));
 
     /*解决缓存击穿（1个热点key）-逻辑过期
      * 此类数据需要提前存进去，例如热点数据，若查询不存在，即不是热点数据
+     * 预热和提前刷新由HotKeyWarmer负责
      * */
     public <R, ID> R queryWithLogicalExpire(
             String KeyPrefix, String LockPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack,
             Long time, TimeUnit unit ){
         //根据id查询redis
         String key = KeyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         //未命中，返回null
-        if(StrUtil.isBlank(json)){
+        if(bytes == null || bytes.length == 0){
+            return null;
+        }
+        //命中，反序列化（只解析一次），判断是否过期
+        RedisData redisData;
+        try {
+            redisData = codec.decodeLogical(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存解析失败，key={}，{}", key, e.getMessage());
             return null;
         }
-        //命中，反序列化，判断是否过期
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
         LocalDateTime expireTime = redisData.getExpireTime();
-        JSONObject data = (JSONObject)redisData.getData();
-        R r = JSONUtil.toBean(data, type);
+        R r = type.cast(redisData.getData());
         //未过期，返回商铺信息
         if(expireTime.isAfter(LocalDateTime.now())){
             return r;
         }
         //过期，获取互斥锁并更新
         String lockKey = LockPrefix+id;
-        Boolean flag = tryLock(lockKey);
-        //获取互斥锁成功
-        if(BooleanUtil.isTrue(flag)){
-            /*TODO double check expire time*/
-            //开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(()->{
+        //获取互斥锁成功，开启独立线程，实现缓存重建
+        if(tryLock(lockKey)){
+            submitRebuild(key, lockKey, () -> dbFallBack.apply(id), time, unit);
+        }
+        //返回过期信息
+        return r;
+    }
+
+    /*主动刷新逻辑过期数据：抢到互斥锁后再次检查过期时间，仍需刷新才查询数据库
+     * 返回false表示其他线程正在刷新，或redis中的数据在ahead时间内不会过期
+     * */
+    public boolean refreshWithLogicalExpire(String key, String lockKey, Supplier<?> dbFallBack,
+                                            Long time, TimeUnit unit, long aheadMillis){
+        if(!tryLock(lockKey)){
+            return false;
+        }
+        try {
+            LocalDateTime expireTime = queryLogicalExpireTimes(Collections.singletonList(key)).get(0);
+            if(expireTime != null && expireTime.isAfter(LocalDateTime.now().plusNanos(aheadMillis * 1_000_000))){
+                return false;
+            }
+            Object r = dbFallBack.get();
+            dbLoads.increment();
+            if(r == null){
+                //数据已被删除，不再作为热点数据保存
+                stringRedisTemplate.delete(key);
+            } else {
+                this.setWithLogicalExpire(key, r, time, unit);
+            }
+            return true;
+        } finally {
+            unLock(lockKey);
+        }
+    }
+
+    /*一次MGET读取多个逻辑过期数据的过期时间，不存在的key返回null*/
+    public List<LocalDateTime> queryLogicalExpireTimes(List<String> keys){
+        byte[][] rawKeys = new byte[keys.size()][];
+        for (int i = 0; i < keys.size(); i++) {
+            rawKeys[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = stringRedisTemplate.execute(
+                (RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+        List<LocalDateTime> expireTimes = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            LocalDateTime expireTime = null;
+            if(bytes != null && bytes.length > 0){
                 try {
-                    //重建缓存
+                    expireTime = codec.decode(bytes, RedisData.class).getExpireTime();
+                } catch (RuntimeException e) {
+                    log.warn("缓存解析失败，key={}，{}", keys.get(i), e.getMessage());
+                }
+            }
+            expireTimes.add(expireTime);
+        }
+        return expireTimes;
+    }
+
+    /*按字节读写redis，编码后的数据可能不是合法的字符串*/
+    private byte[] getBytes(String key){
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void setBytes(String key, byte[] value, long time, TimeUnit unit){
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands().set(
+                key.getBytes(StandardCharsets.UTF_8), value,
+                Expiration.from(time, unit), RedisStringCommands.SetOption.upsert()));
+    }
+
+    /*提交重建任务，线程池已满时释放锁，下次请求再重试*/
+    private void submitRebuild(String key, String lockKey, Supplier<?> dbFallBack, Long time, TimeUnit unit){
+        try {
+            CACHE_REBUILD_EXECUTOR.execute(()->{
+                try {
+                    //再次检查过期时间，其他线程可能已经重建完成
+                    LocalDateTime expireTime = queryLogicalExpireTimes(Collections.singletonList(key)).get(0);
+                    if(expireTime != null && expireTime.isAfter(LocalDateTime.now())){
+                        return;
+                    }
                     //先查询数据库
-                    R r1 = dbFallBack.apply(id);
+                    Object r = dbFallBack.get();
+                    dbLoads.increment();
                     //写入redis
-                    this.setWithLogicalExpire(key, r1, time, unit);
+                    if(r != null){
+                        this.setWithLogicalExpire(key, r, time, unit);
+                    }
                 }catch (Exception e){
-                    throw new RuntimeException(e);
+                    log.error("缓存重建失败，key=" + key, e);
                 }finally {
                     unLock(lockKey);
                 }
             });
+        } catch (RejectedExecutionException e) {
+            unLock(lockKey);
+            log.warn("缓存重建线程池已满，key={}", key);
         }
-        //返回过期信息
-        return r;
     }
 
     private Boolean tryLock(String key){
@@ -132,5 +570,32 @@ public class CacheClient {
         stringRedisTemplate.delete(key);
     }
 
+    /*本地缓存条目，value为null表示空值*/
+    private static class LocalEntry {
+        private final Object value;
+        private final long ttlNanos;
+
+        private LocalEntry(Object value, long ttlNanos) {
+            this.value = value;
+            this.ttlNanos = ttlNanos;
+        }
+    }
+
+    /*每个条目使用各自的有效期*/
+    private static class LocalEntryExpiry implements Expiry<String, LocalEntry> {
+        @Override
+        public long expireAfterCreate(String key, LocalEntry entry, long currentTime) {
+            return entry.ttlNanos;
+        }
 
+        @Override
+        public long expireAfterUpdate(String key, LocalEntry entry, long currentTime, long currentDuration) {
+            return entry.ttlNanos;
+        }
+
+        @Override
+        public long expireAfterRead(String key, LocalEntry entry, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
 }
@@ -0,0 +1,23 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/*缓存值的编解码，CacheClient通过它读写redis中的字节
+ * 默认提供JSON和Kryo两种实现，可以注册自定义的CacheCodec bean替换
+ * */
+public interface CacheCodec {
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    <T> List<T> decodeList(byte[] bytes, Class<T> type);
+
+    /*解析逻辑过期数据，返回的data已经是目标类型*/
+    default <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        return decode(bytes, RedisData.class);
+    }
+
+    /*编码名称，用于指标和日志*/
+    String name();
+}
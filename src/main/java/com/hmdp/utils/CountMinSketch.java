@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*Count-Min Sketch：用固定大小的计数矩阵近似统计每个id的访问次数，只会高估不会低估
+ * 定期调用halve()把所有计数减半，让过去的热度逐渐衰减
+ * */
+public class CountMinSketch {
+
+    private final int depth;
+    private final int mask;
+    private final AtomicLongArray counters;
+
+    /*width向上取整为2的幂，depth为哈希函数个数*/
+    public CountMinSketch(int width, int depth) {
+        int w = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+        this.depth = depth;
+        this.mask = w - 1;
+        this.counters = new AtomicLongArray(w * depth);
+    }
+
+    /*计数加1，返回加1后的估计值*/
+    public long increment(long id) {
+        long h = BloomFilter.mix(id);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int idx = i * (mask + 1) + ((h1 + i * h2) & mask);
+            min = Math.min(min, counters.incrementAndGet(idx));
+        }
+        return min;
+    }
+
+    /*估计访问次数*/
+    public long estimate(long id) {
+        long h = BloomFilter.mix(id);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int idx = i * (mask + 1) + ((h1 + i * h2) & mask);
+            min = Math.min(min, counters.get(idx));
+        }
+        return min;
+    }
+
+    /*所有计数减半，与并发的increment之间不需要严格一致*/
+    public void halve() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, counters.get(i) >>> 1);
+        }
+    }
+}
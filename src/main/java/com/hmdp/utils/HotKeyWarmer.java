@@ -0,0 +1,302 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/*热点key预热与提前刷新：
+ * 启动时把配置的id和top-N数据写成逻辑过期格式；
+ * 运行时用Count-Min Sketch统计访问频率，超过阈值的id晋升为热点key；
+ * 定时任务一次MGET检查所有热点key的逻辑过期时间，快过期的提交到有界线程池刷新
+ * */
+@Slf4j
+@Component
+public class HotKeyWarmer implements SmartInitializingSingleton {
+
+    public static final String SHOP = "shop";
+
+    /*每次定时任务最多处理的候选id数*/
+    private static final int MAX_CANDIDATES = 1024;
+    private static final int MGET_BATCH = 500;
+
+    private final CacheClient cacheClient;
+    private final Environment environment;
+    private final boolean enabled;
+    private final long ttlSeconds;
+    private final int topN;
+    private final int capacity;
+    private final long hotThreshold;
+    private final long refreshAheadMillis;
+    private final long tickSeconds;
+    private final int decayTicks;
+
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("hot-key-tick-", true));
+
+    /*刷新线程池：有界队列，队列满时本轮放弃，下一轮定时任务再提交*/
+    private final ThreadPoolExecutor refreshExecutor = new ThreadPoolExecutor(1, 4,
+            60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(256), new NamedThreadFactory("hot-key-refresh-", true));
+
+    private long ticks;
+
+    public HotKeyWarmer(CacheClient cacheClient,
+                        Environment environment,
+                        @Value("${hmdp.cache.warmup.enabled:false}") boolean enabled,
+                        @Value("${hmdp.cache.warmup.ttl-seconds:300}") long ttlSeconds,
+                        @Value("${hmdp.cache.warmup.top-n:100}") int topN,
+                        @Value("${hmdp.cache.warmup.capacity:500}") int capacity,
+                        @Value("${hmdp.cache.warmup.hot-threshold:50}") long hotThreshold,
+                        @Value("${hmdp.cache.warmup.refresh-ahead-seconds:60}") long refreshAheadSeconds,
+                        @Value("${hmdp.cache.warmup.tick-seconds:10}") long tickSeconds,
+                        @Value("${hmdp.cache.warmup.decay-ticks:6}") int decayTicks) {
+        this.cacheClient = cacheClient;
+        this.environment = environment;
+        this.enabled = enabled;
+        this.ttlSeconds = ttlSeconds;
+        this.topN = topN;
+        this.capacity = capacity;
+        this.hotThreshold = hotThreshold;
+        this.refreshAheadMillis = TimeUnit.SECONDS.toMillis(refreshAheadSeconds);
+        this.tickSeconds = tickSeconds;
+        this.decayTicks = Math.max(1, decayTicks);
+    }
+
+    /*注册一类热点数据，ids.<name>配置的id和topLoader返回的前N个id在启动时预热*/
+    public void register(String name, String keyPrefix, String lockPrefix,
+                         Function<Long, ?> dbFallback, Function<Integer, List<Long>> topLoader) {
+        if(!enabled){
+            return;
+        }
+        registrations.put(name, new Registration(name, keyPrefix, lockPrefix, dbFallback, topLoader,
+                new CountMinSketch(Math.max(1024, capacity * 16), 4)));
+    }
+
+    /*逻辑过期时间，查询时与预热时保持一致*/
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    /*记录一次访问，返回该id当前是否为热点key*/
+    public boolean recordAccess(String name, long id) {
+        Registration registration = registrations.get(name);
+        if(registration == null){
+            return false;
+        }
+        long estimate = registration.sketch.increment(id);
+        if(registration.hot.contains(id)){
+            return true;
+        }
+        if(estimate >= hotThreshold && registration.candidates.size() < MAX_CANDIDATES){
+            registration.candidates.add(id);
+        }
+        return false;
+    }
+
+    /*所有单例创建完成、web服务器启动之前同步预热，之后开始定时检查*/
+    @Override
+    public void afterSingletonsInstantiated() {
+        if(!enabled){
+            return;
+        }
+        for (Registration registration : registrations.values()) {
+            long begin = System.currentTimeMillis();
+            try {
+                Set<Long> ids = new LinkedHashSet<>();
+                String configured = environment.getProperty("hmdp.cache.warmup.ids." + registration.name);
+                if(StrUtil.isNotBlank(configured)){
+                    for (String id : StrUtil.split(configured, ',', true, true)) {
+                        ids.add(Long.valueOf(id));
+                    }
+                }
+                if(topN > 0){
+                    ids.addAll(registration.topLoader.apply(topN));
+                }
+                for (Long id : ids) {
+                    if(registration.hot.size() >= capacity){
+                        break;
+                    }
+                    registration.hot.add(id);
+                    refresh(registration, id);
+                }
+                log.info("热点key{}预热完成，共{}个，耗时{}ms", registration.name, registration.hot.size(),
+                        System.currentTimeMillis() - begin);
+            } catch (Exception e) {
+                log.error("热点key" + registration.name + "预热失败", e);
+            }
+        }
+        scheduler.scheduleWithFixedDelay(this::tick, tickSeconds, tickSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+        refreshExecutor.shutdownNow();
+    }
+
+    private void tick() {
+        ticks++;
+        for (Registration registration : registrations.values()) {
+            try {
+                promote(registration);
+                refreshExpiring(registration);
+                if(ticks % decayTicks == 0){
+                    registration.sketch.halve();
+                }
+            } catch (Exception e) {
+                log.error("热点key" + registration.name + "检查失败", e);
+            }
+        }
+    }
+
+    /*候选id晋升为热点key，容量已满时替换访问频率最低的热点key*/
+    private void promote(Registration registration) {
+        for (Long id : registration.candidates) {
+            registration.candidates.remove(id);
+            if(registration.hot.contains(id)){
+                continue;
+            }
+            if(registration.hot.size() >= capacity){
+                Long coldest = null;
+                long coldestCount = Long.MAX_VALUE;
+                for (Long hotId : registration.hot) {
+                    long count = registration.sketch.estimate(hotId);
+                    if(count < coldestCount){
+                        coldest = hotId;
+                        coldestCount = count;
+                    }
+                }
+                if(coldest == null || coldestCount >= registration.sketch.estimate(id)){
+                    continue;
+                }
+                // 被替换的key不再刷新，redis中的数据到期后自动删除
+                registration.hot.remove(coldest);
+                registration.evictions.increment();
+            }
+            registration.hot.add(id);
+            registration.promotions.increment();
+            submitRefresh(registration, id);
+        }
+    }
+
+    /*分批MGET热点key，不存在或即将逻辑过期的提交刷新*/
+    private void refreshExpiring(Registration registration) {
+        List<Long> ids = new ArrayList<>(registration.hot);
+        LocalDateTime deadline = LocalDateTime.now().plusNanos(refreshAheadMillis * 1_000_000);
+        for (int from = 0; from < ids.size(); from += MGET_BATCH) {
+            List<Long> batch = ids.subList(from, Math.min(ids.size(), from + MGET_BATCH));
+            List<String> keys = new ArrayList<>(batch.size());
+            for (Long id : batch) {
+                keys.add(registration.keyPrefix + id);
+            }
+            List<LocalDateTime> expireTimes = cacheClient.queryLogicalExpireTimes(keys);
+            for (int i = 0; i < batch.size(); i++) {
+                LocalDateTime expireTime = expireTimes.get(i);
+                if(expireTime == null || expireTime.isBefore(deadline)){
+                    submitRefresh(registration, batch.get(i));
+                }
+            }
+        }
+    }
+
+    private void submitRefresh(Registration registration, Long id) {
+        // 同一个id同时只提交一次
+        if(!registration.refreshing.add(id)){
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    refresh(registration, id);
+                } catch (Exception e) {
+                    log.error("热点key刷新失败，key=" + registration.keyPrefix + id, e);
+                } finally {
+                    registration.refreshing.remove(id);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            registration.refreshing.remove(id);
+        }
+    }
+
+    /*其他节点已刷新或正在刷新时跳过；数据库中已不存在的id移出热点*/
+    private void refresh(Registration registration, Long id) {
+        boolean refreshed = cacheClient.refreshWithLogicalExpire(
+                registration.keyPrefix + id, registration.lockPrefix + id,
+                () -> {
+                    Object r = registration.dbFallback.apply(id);
+                    if(r == null){
+                        registration.hot.remove(id);
+                    }
+                    return r;
+                }, ttlSeconds, TimeUnit.SECONDS, refreshAheadMillis);
+        if(refreshed){
+            registration.refreshes.increment();
+        }
+    }
+
+    /*热点key统计*/
+    public List<Map<String, Object>> queryHotKeyMetrics() {
+        List<Map<String, Object>> metrics = new ArrayList<>();
+        for (Registration registration : registrations.values()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("name", registration.name);
+            item.put("hotKeys", registration.hot.size());
+            item.put("candidates", registration.candidates.size());
+            item.put("promotions", registration.promotions.sum());
+            item.put("evictions", registration.evictions.sum());
+            item.put("refreshes", registration.refreshes.sum());
+            item.put("refreshQueue", refreshExecutor.getQueue().size());
+            metrics.add(item);
+        }
+        return metrics;
+    }
+
+    private static class Registration {
+        private final String name;
+        private final String keyPrefix;
+        private final String lockPrefix;
+        private final Function<Long, ?> dbFallback;
+        private final Function<Integer, List<Long>> topLoader;
+        private final CountMinSketch sketch;
+        private final Set<Long> hot = ConcurrentHashMap.newKeySet();
+        private final Set<Long> candidates = ConcurrentHashMap.newKeySet();
+        private final Set<Long> refreshing = ConcurrentHashMap.newKeySet();
+        private final LongAdder promotions = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder refreshes = new LongAdder();
+
+        private Registration(String name, String keyPrefix, String lockPrefix, Function<Long, ?> dbFallback,
+                             Function<Integer, List<Long>> topLoader, CountMinSketch sketch) {
+            this.name = name;
+            this.keyPrefix = keyPrefix;
+            this.lockPrefix = lockPrefix;
+            this.dbFallback = dbFallback;
+            this.topLoader = topLoader;
+            this.sketch = sketch;
+        }
+    }
+}
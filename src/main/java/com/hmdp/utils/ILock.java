@@ -1,9 +1,29 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 public interface ILock {
 
+    Long DEFAULT_LEASE_SECONDS = 30L;
+    long RETRY_INTERVAL_MILLIS = 50;
+
+    /*尝试获取锁，不等待；time为租期（秒），到期自动释放*/
     Boolean tryLock(Long time);
 
     void unLock();
 
+    /*在timeout内阻塞获取锁，获取成功后一直持有到unLock；
+     * 默认实现每隔一段时间重试tryLock，租期固定为DEFAULT_LEASE_SECONDS
+     * */
+    default boolean lock(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!tryLock(DEFAULT_LEASE_SECONDS)) {
+            if(System.nanoTime() >= deadline){
+                return false;
+            }
+            Thread.sleep(RETRY_INTERVAL_MILLIS);
+        }
+        return true;
+    }
+
 }
@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.CompatibleFieldSerializer;
+import com.esotericsoftware.kryo.util.Pool;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.BlogComments;
+import com.hmdp.entity.Follow;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.Sign;
+import com.hmdp.entity.User;
+import com.hmdp.entity.UserInfo;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/*Kryo二进制编码，超过阈值的值使用LZ4压缩
+ * 格式：1字节魔数 + 1字节标志 + [压缩时4字节原始长度] + 数据
+ * 魔数不是合法的UTF-8首字节，可以和JSON数据区分开
+ * 只能读写注册过的类，redis中的数据不能指定任意类名来实例化；类的id按注册顺序分配，新增类只能追加到末尾
+ * */
+public class KryoCacheCodec implements CacheCodec {
+
+    public static final byte MAGIC = (byte) 0xC1;
+
+    private static final byte FLAG_PLAIN = 0;
+    private static final byte FLAG_LZ4 = 1;
+
+    /*自定义类的id从这里开始，前面留给kryo内置的基本类型*/
+    private static final int FIRST_ID = 100;
+
+    /*缓存中会出现的类，顺序决定id，不能调整*/
+    private static final List<Class<?>> BUILTIN_CLASSES = Arrays.asList(
+            ArrayList.class, HashMap.class, LinkedHashMap.class, LocalDateTime.class, LocalDate.class,
+            RedisData.class, UserDTO.class, Shop.class, ShopType.class, Voucher.class, SeckillVoucher.class,
+            Blog.class, BlogComments.class, Follow.class, Sign.class, User.class, UserInfo.class, VoucherOrder.class);
+
+    private final List<Class<?>> classes;
+
+    /*Kryo实例不是线程安全的，使用对象池复用*/
+    private final Pool<Kryo> kryoPool = new Pool<Kryo>(true, false, 64) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            kryo.setRegistrationRequired(true);
+            kryo.setReferences(false);
+            // 实体类增删字段后旧数据仍能读取
+            kryo.setDefaultSerializer(CompatibleFieldSerializer.class);
+            for (int i = 0; i < classes.size(); i++) {
+                kryo.register(classes.get(i), FIRST_ID + i);
+            }
+            return kryo;
+        }
+    };
+
+    private final Pool<Output> outputPool = new Pool<Output>(true, false, 64) {
+        @Override
+        protected Output create() {
+            return new Output(1024, -1);
+        }
+    };
+
+    private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    /*超过该字节数时压缩，小于等于0表示不压缩*/
+    private final int compressThreshold;
+
+    public KryoCacheCodec(int compressThreshold) {
+        this(compressThreshold, Collections.emptyList());
+    }
+
+    /*extraClasses：内置列表之外需要缓存的类，追加在内置类之后*/
+    public KryoCacheCodec(int compressThreshold, List<Class<?>> extraClasses) {
+        this.compressThreshold = compressThreshold;
+        List<Class<?>> all = new ArrayList<>(BUILTIN_CLASSES);
+        all.addAll(extraClasses);
+        this.classes = Collections.unmodifiableList(all);
+    }
+
+    public static boolean isBinary(byte[] bytes) {
+        return bytes.length > 1 && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Kryo kryo = kryoPool.obtain();
+        Output output = outputPool.obtain();
+        try {
+            output.reset();
+            // Arrays.asList、subList等List实现没有注册，统一按ArrayList写入
+            if(value instanceof List && !(value instanceof ArrayList)){
+                value = new ArrayList<>((List<?>) value);
+            }
+            kryo.writeClassAndObject(output, value);
+            byte[] raw = output.getBuffer();
+            int length = output.position();
+            if(compressThreshold > 0 && length > compressThreshold){
+                byte[] compressed = new byte[6 + compressor.maxCompressedLength(length)];
+                int size = compressor.compress(raw, 0, length, compressed, 6);
+                // 压缩后没有变小时按原样存储
+                if(size < length){
+                    compressed[0] = MAGIC;
+                    compressed[1] = FLAG_LZ4;
+                    compressed[2] = (byte) (length >>> 24);
+                    compressed[3] = (byte) (length >>> 16);
+                    compressed[4] = (byte) (length >>> 8);
+                    compressed[5] = (byte) length;
+                    byte[] result = new byte[6 + size];
+                    System.arraycopy(compressed, 0, result, 0, result.length);
+                    return result;
+                }
+            }
+            byte[] result = new byte[2 + length];
+            result[0] = MAGIC;
+            result[1] = FLAG_PLAIN;
+            System.arraycopy(raw, 0, result, 2, length);
+            return result;
+        } finally {
+            outputPool.free(output);
+            kryoPool.free(kryo);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return type.cast(read(bytes));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> decodeList(byte[] bytes, Class<T> type) {
+        return (List<T>) read(bytes);
+    }
+
+    @Override
+    public String name() {
+        return "kryo";
+    }
+
+    private Object read(byte[] bytes) {
+        if(!isBinary(bytes)){
+            throw new IllegalArgumentException("不是Kryo编码的数据");
+        }
+        Input input;
+        if(bytes[1] == FLAG_LZ4){
+            int length = (bytes[2] & 0xFF) << 24 | (bytes[3] & 0xFF) << 16 | (bytes[4] & 0xFF) << 8 | (bytes[5] & 0xFF);
+            byte[] raw = new byte[length];
+            decompressor.decompress(bytes, 6, raw, 0, length);
+            input = new Input(raw);
+        } else {
+            input = new Input(bytes, 2, bytes.length - 2);
+        }
+        Kryo kryo = kryoPool.obtain();
+        try {
+            return kryo.readClassAndObject(input);
+        } finally {
+            kryoPool.free(kryo);
+        }
+    }
+}
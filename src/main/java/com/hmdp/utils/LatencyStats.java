@@ -0,0 +1,67 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*简单的耗时统计，按微秒取log2分桶，近似计算分位数，无锁可并发记录*/
+public class LatencyStats {
+
+    /*第i个桶记录 [2^(i-1), 2^i) 微秒，最后一个桶兜底*/
+    private static final int BUCKETS = 40;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Long::max, 0);
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        count.increment();
+        totalMicros.add(micros);
+        maxMicros.accumulate(micros);
+        int idx = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(idx);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /*返回分位数的近似值（桶上界），单位毫秒*/
+    public double percentileMillis(double p) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return (1L << i) / 1000.0;
+            }
+        }
+        return maxMicros.get() / 1000.0;
+    }
+
+    public Map<String, Object> snapshot() {
+        long n = count.sum();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("count", n);
+        map.put("avgMs", n == 0 ? 0 : totalMicros.sum() / 1000.0 / n);
+        map.put("p50Ms", percentileMillis(0.50));
+        map.put("p90Ms", percentileMillis(0.90));
+        map.put("p99Ms", percentileMillis(0.99));
+        map.put("maxMs", maxMicros.get() / 1000.0);
+        return map;
+    }
+}
@@ -0,0 +1,52 @@
+package com.hmdp.utils;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*进程内的布隆过滤器，位数组保存在AtomicLongArray中，可并发读写*/
+public class LocalBloomFilter implements BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long bitSize;
+    private final int hashCount;
+
+    public LocalBloomFilter(long expectedInsertions, double fpp) {
+        long bits = BloomFilter.optimalBitSize(expectedInsertions, fpp);
+        this.words = new AtomicLongArray((int) ((bits + 63) / 64));
+        this.bitSize = (long) words.length() * 64;
+        this.hashCount = BloomFilter.optimalHashCount(expectedInsertions, bitSize);
+    }
+
+    @Override
+    public boolean mightContain(long id) {
+        for (long offset : BloomFilter.offsets(id, bitSize, hashCount)) {
+            if ((words.get((int) (offset >>> 6)) & (1L << offset)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void put(long id) {
+        for (long offset : BloomFilter.offsets(id, bitSize, hashCount)) {
+            long mask = 1L << offset;
+            words.accumulateAndGet((int) (offset >>> 6), mask, (a, b) -> a | b);
+        }
+    }
+
+    @Override
+    public void putAll(Collection<Long> ids) {
+        ids.forEach(this::put);
+    }
+
+    @Override
+    public long bitSize() {
+        return bitSize;
+    }
+
+    @Override
+    public int hashCount() {
+        return hashCount;
+    }
+}
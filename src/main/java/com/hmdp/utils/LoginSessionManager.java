@@ -0,0 +1,288 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/*登录会话管理，支持两种模式：
+ * redis：redis中按token保存用户hash，各节点在本地短暂缓存；
+ *   每次请求只记录需要续期的token，定时用pipeline批量EXPIRE，一个周期内同一个token只续期一次；
+ *   登出时删除redis数据并广播，其他节点清除本地缓存
+ * signed：token本身携带用户信息并签名，校验不访问redis；剩余有效期不足一半时签发新token（滑动续期）；
+ *   登出时把会话id写入redis吊销集合，各节点用本地布隆过滤器判断，可能命中时才查询redis
+ * 配置了secret时两种token都能识别，切换模式期间已登录的用户不受影响
+ * */
+@Slf4j
+@Component
+public class LoginSessionManager {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /*token -> 用户，有效期远小于redis中的有效期*/
+    private final Cache<String, UserDTO> sessions;
+
+    /*等待续期的token*/
+    private final Set<String> pendingRefresh = ConcurrentHashMap.newKeySet();
+
+    /*签名token的编解码，未配置secret时为null*/
+    private final SignedTokenCodec signedTokenCodec;
+    private final boolean signedMode;
+    private final long tokenTtlSeconds = TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL);
+
+    /*已吊销会话id的本地布隆过滤器，尚未构建完成时为null，此时直接查询redis*/
+    private volatile BloomFilter revokedFilter;
+    private volatile BloomFilter rebuildingFilter;
+
+    private final ScheduledExecutorService refreshExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("login-refresh-", true));
+
+    public LoginSessionManager(StringRedisTemplate stringRedisTemplate,
+                               RedisMessageListenerContainer listenerContainer,
+                               @Value("${hmdp.login.local.maximum-size:100000}") long localMaximumSize,
+                               @Value("${hmdp.login.local.ttl-seconds:30}") long localTtlSeconds,
+                               @Value("${hmdp.login.refresh-interval-seconds:10}") long refreshIntervalSeconds,
+                               @Value("${hmdp.login.mode:redis}") String mode,
+                               @Value("${hmdp.login.secret:}") String secret,
+                               @Value("${hmdp.login.revoked-rebuild-minutes:10}") long revokedRebuildMinutes) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.signedMode = "signed".equalsIgnoreCase(mode);
+        if(signedMode && StrUtil.isBlank(secret)){
+            throw new IllegalStateException("hmdp.login.mode为signed时必须配置hmdp.login.secret，且所有节点一致");
+        }
+        this.signedTokenCodec = StrUtil.isBlank(secret) ? null : new SignedTokenCodec(secret);
+        this.sessions = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(localTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        // 其他节点登出后清除本地缓存
+        listenerContainer.addMessageListener((message, pattern) ->
+                sessions.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(LOGIN_INVALIDATE_CHANNEL));
+        refreshExecutor.scheduleWithFixedDelay(this::flushRefresh,
+                refreshIntervalSeconds, refreshIntervalSeconds, TimeUnit.SECONDS);
+        if(signedTokenCodec != null){
+            // 其他节点吊销的会话加入本地过滤器
+            listenerContainer.addMessageListener((message, pattern) ->
+                    onRevoked(Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8))),
+                    new ChannelTopic(LOGIN_REVOKED_CHANNEL));
+            refreshExecutor.scheduleWithFixedDelay(this::rebuildRevokedFilter,
+                    0, revokedRebuildMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdownNow();
+        flushRefresh();
+    }
+
+    /*创建会话：signed模式签发签名token，否则保存用户信息到redis，返回随机生成的token*/
+    public String createSession(UserDTO userDTO) {
+        if(signedMode){
+            long sessionId = RandomUtil.getSecureRandom().nextLong();
+            return signedTokenCodec.encode(new SignedTokenCodec.SignedToken(
+                    sessionId, System.currentTimeMillis() / 1000 + tokenTtlSeconds, userDTO));
+        }
+        String token = UUID.randomUUID().toString(true);
+        // id为long，需要手动转为string再存入hash
+        Map<String, String> userMap = new HashMap<>(4);
+        userMap.put("id", userDTO.getId().toString());
+        if(userDTO.getNickName() != null){
+            userMap.put("nickName", userDTO.getNickName());
+        }
+        if(userDTO.getIcon() != null){
+            userMap.put("icon", userDTO.getIcon());
+        }
+        String key = LOGIN_USER_KEY + token;
+        stringRedisTemplate.opsForHash().putAll(key, userMap);
+        stringRedisTemplate.expire(key, LOGIN_USER_TTL, TimeUnit.MINUTES);
+        sessions.put(token, userDTO);
+        return token;
+    }
+
+    /*根据token查询会话，先查本地缓存，再查redis，并登记续期；签名token只校验一次，快过期时同时签发新token；不存在时返回null*/
+    public Session getSession(String token) {
+        if(SignedTokenCodec.isSignedToken(token)){
+            SignedTokenCodec.SignedToken signed = verify(token);
+            return signed == null ? null : new Session(signed.getUser(), renewToken(signed));
+        }
+        UserDTO userDTO = sessions.getIfPresent(token);
+        if(userDTO == null){
+            Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(LOGIN_USER_KEY + token);
+            if(userMap.isEmpty()){
+                return null;
+            }
+            userDTO = toUserDTO(userMap);
+            sessions.put(token, userDTO);
+        }
+        pendingRefresh.add(token);
+        return new Session(userDTO, null);
+    }
+
+    /*滑动续期：签名token剩余有效期不足一半时返回新token，否则返回null*/
+    private String renewToken(SignedTokenCodec.SignedToken signed) {
+        long now = System.currentTimeMillis() / 1000;
+        if(signed.getExpireAt() - now > tokenTtlSeconds / 2){
+            return null;
+        }
+        return signedTokenCodec.encode(new SignedTokenCodec.SignedToken(
+                signed.getSessionId(), now + tokenTtlSeconds, signed.getUser()));
+    }
+
+    /*登出：删除redis中的会话并通知所有节点*/
+    public void logout(String token) {
+        if(SignedTokenCodec.isSignedToken(token)){
+            SignedTokenCodec.SignedToken signed = verify(token);
+            if(signed != null){
+                revoke(signed.getSessionId());
+            }
+            return;
+        }
+        pendingRefresh.remove(token);
+        sessions.invalidate(token);
+        stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+        stringRedisTemplate.convertAndSend(LOGIN_INVALIDATE_CHANNEL, token);
+    }
+
+    /*校验签名、有效期和吊销状态，不通过时返回null*/
+    private SignedTokenCodec.SignedToken verify(String token) {
+        if(signedTokenCodec == null){
+            return null;
+        }
+        SignedTokenCodec.SignedToken signed = signedTokenCodec.decode(token);
+        if(signed == null || signed.getExpireAt() < System.currentTimeMillis() / 1000){
+            return null;
+        }
+        return isRevoked(signed.getSessionId()) ? null : signed;
+    }
+
+    /*吊销会话：续期签发的token会话id相同，一起失效；
+     * 吊销记录保留一个完整的有效期，之后该会话的所有token都已过期
+     * */
+    private void revoke(long sessionId) {
+        long expireAt = System.currentTimeMillis() / 1000 + tokenTtlSeconds;
+        stringRedisTemplate.opsForZSet().add(LOGIN_REVOKED_KEY, String.valueOf(sessionId), expireAt);
+        onRevoked(sessionId);
+        stringRedisTemplate.convertAndSend(LOGIN_REVOKED_CHANNEL, String.valueOf(sessionId));
+    }
+
+    private void onRevoked(long sessionId) {
+        BloomFilter filter = revokedFilter;
+        if(filter != null){
+            filter.put(sessionId);
+        }
+        BloomFilter building = rebuildingFilter;
+        if(building != null){
+            building.put(sessionId);
+        }
+    }
+
+    /*布隆过滤器判断一定未吊销时不访问redis*/
+    private boolean isRevoked(long sessionId) {
+        BloomFilter filter = revokedFilter;
+        if(filter != null && !filter.mightContain(sessionId)){
+            return false;
+        }
+        return stringRedisTemplate.opsForZSet().score(LOGIN_REVOKED_KEY, String.valueOf(sessionId)) != null;
+    }
+
+    /*清理已过期的吊销记录，并用剩余记录重建过滤器*/
+    private void rebuildRevokedFilter() {
+        try {
+            long now = System.currentTimeMillis() / 1000;
+            stringRedisTemplate.opsForZSet().removeRangeByScore(LOGIN_REVOKED_KEY, 0, now);
+            Long size = stringRedisTemplate.opsForZSet().zCard(LOGIN_REVOKED_KEY);
+            BloomFilter building = new LocalBloomFilter(Math.max(10000, (size == null ? 0 : size) * 2), 0.001);
+            // 构建期间收到的吊销消息同时写入新旧两个过滤器
+            rebuildingFilter = building;
+            Set<String> members = stringRedisTemplate.opsForZSet().range(LOGIN_REVOKED_KEY, 0, -1);
+            if(members != null){
+                for (String member : members) {
+                    building.put(Long.parseLong(member));
+                }
+            }
+            revokedFilter = building;
+        } catch (Exception e) {
+            log.error("重建token吊销过滤器失败", e);
+        } finally {
+            rebuildingFilter = null;
+        }
+    }
+
+    /*请求对应的会话：当前用户，以及需要返回给前端的新token（不需要续期时为null）*/
+    public static class Session {
+        private final UserDTO user;
+        private final String renewedToken;
+
+        private Session(UserDTO user, String renewedToken) {
+            this.user = user;
+            this.renewedToken = renewedToken;
+        }
+
+        public UserDTO getUser() {
+            return user;
+        }
+
+        public String getRenewedToken() {
+            return renewedToken;
+        }
+    }
+
+    /*hash只有三个字段，直接赋值，不再通过反射填充*/
+    private static UserDTO toUserDTO(Map<Object, Object> userMap) {
+        UserDTO userDTO = new UserDTO();
+        Object id = userMap.get("id");
+        userDTO.setId(id == null ? null : Long.valueOf(id.toString()));
+        userDTO.setNickName((String) userMap.get("nickName"));
+        userDTO.setIcon((String) userMap.get("icon"));
+        return userDTO;
+    }
+
+    /*把周期内访问过的token一次pipeline续期*/
+    private void flushRefresh() {
+        if(pendingRefresh.isEmpty()){
+            return;
+        }
+        List<byte[]> keys = new ArrayList<>(pendingRefresh.size());
+        for (String token : pendingRefresh) {
+            pendingRefresh.remove(token);
+            keys.add((LOGIN_USER_KEY + token).getBytes(StandardCharsets.UTF_8));
+        }
+        long seconds = TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL);
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (byte[] key : keys) {
+                    connection.keyCommands().expire(key, seconds);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("登录token续期失败，共" + keys.size() + "个", e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/*迁移模式：按配置的编码写入，读取时根据魔数识别Kryo和JSON两种格式
+ * 切换编码期间新旧数据共存，旧数据到期或被覆盖后即完成迁移，也可以按原路切回
+ * */
+public class MigratingCacheCodec implements CacheCodec {
+
+    private final CacheCodec writer;
+    private final KryoCacheCodec kryoCodec;
+    private final JsonCacheCodec jsonCodec;
+
+    public MigratingCacheCodec(CacheCodec writer, KryoCacheCodec kryoCodec, JsonCacheCodec jsonCodec) {
+        this.writer = writer;
+        this.kryoCodec = kryoCodec;
+        this.jsonCodec = jsonCodec;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return writer.encode(value);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return reader(bytes).decode(bytes, type);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, Class<T> type) {
+        return reader(bytes).decodeList(bytes, type);
+    }
+
+    @Override
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        return reader(bytes).decodeLogical(bytes, type);
+    }
+
+    @Override
+    public String name() {
+        return writer.name() + "(migrating)";
+    }
+
+    private CacheCodec reader(byte[] bytes) {
+        return KryoCacheCodec.isBinary(bytes) ? kryoCodec : jsonCodec;
+    }
+}
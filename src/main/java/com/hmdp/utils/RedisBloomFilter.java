@@ -0,0 +1,90 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+/*基于redis位图的布隆过滤器，各节点共享；一次判断的k个GETBIT通过管道一次往返完成*/
+public class RedisBloomFilter implements BloomFilter {
+
+    /*redis位图最多2^32位*/
+    private static final long MAX_BITS = 1L << 32;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;
+    private final byte[] rawKey;
+    private final long bitSize;
+    private final int hashCount;
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String key, long bitSize, int hashCount) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key;
+        this.rawKey = key.getBytes(StandardCharsets.UTF_8);
+        this.bitSize = Math.min(bitSize, MAX_BITS);
+        this.hashCount = hashCount;
+    }
+
+    public static RedisBloomFilter create(StringRedisTemplate stringRedisTemplate, String key,
+                                          long expectedInsertions, double fpp) {
+        long bitSize = BloomFilter.optimalBitSize(expectedInsertions, fpp);
+        return new RedisBloomFilter(stringRedisTemplate, key, bitSize,
+                BloomFilter.optimalHashCount(expectedInsertions, Math.min(bitSize, MAX_BITS)));
+    }
+
+    @Override
+    public boolean mightContain(long id) {
+        long[] offsets = BloomFilter.offsets(id, bitSize, hashCount);
+        List<Object> bits = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.getBit(rawKey, offset);
+            }
+            return null;
+        });
+        for (Object bit : bits) {
+            if (!Boolean.TRUE.equals(bit)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void put(long id) {
+        long[] offsets = BloomFilter.offsets(id, bitSize, hashCount);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(rawKey, offset, true);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void putAll(Collection<Long> ids) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long id : ids) {
+                for (long offset : BloomFilter.offsets(id, bitSize, hashCount)) {
+                    connection.setBit(rawKey, offset, true);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public long bitSize() {
+        return bitSize;
+    }
+
+    @Override
+    public int hashCount() {
+        return hashCount;
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
@@ -5,18 +5,66 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 30L;
+    public static final String LOGIN_INVALIDATE_CHANNEL = "login:invalidate";
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    public static final String LOGIN_REVOKED_CHANNEL = "login:revoked";
 
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_SHOP_HOT_KEY = "cache:shop:hot:";
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:typeList";
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_VOUCHER_LIST_TTL = 30L;
+    public static final String CACHE_VOUCHER_LIST_KEY = "cache:voucher:shop:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_LOADED_CHANNEL = "cache:loaded";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
+    public static final String LOCK_SHOP_HOT_KEY = "lock:shop:hot:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_SYNC_CHANNEL = "bloom:sync";
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DEAD_LETTER_STREAM = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_FAILURES_KEY = "stream.orders:failures";
+    public static final String LOCK_SECKILL_ORDER_SWEEP_KEY = "lock:seckill:order:sweep";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_VOUCHER_CHANNEL = "seckill:voucher";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_RECONCILE_REPORT_KEY = "seckill:reconcile:report";
+    public static final String SECKILL_RECONCILE_ORPHAN_KEY = "seckill:reconcile:orphan";
+    public static final String SECKILL_RECONCILE_ORPHAN_NEXT_KEY = "seckill:reconcile:orphan:next";
+    public static final String LOCK_SECKILL_RECONCILE_KEY = "lock:seckill:reconcile";
+    public static final String LOCK_RELEASE_CHANNEL = "lock:release";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKED_DELTA_KEY = "blog:liked:delta";
+    public static final String BLOG_LIKED_FLUSHING_KEY = "blog:liked:delta:flushing";
+    /*RedisLockFactory.getLock的锁名，实际key为lock:blog:liked:flush*/
+    public static final String LOCK_BLOG_LIKED_FLUSH_NAME = "blog:liked:flush";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String BLOG_HOT_EPOCH_KEY = "blog:hot:epoch";
+    public static final String LOCK_BLOG_HOT_KEY = "lock:blog:hot";
+    public static final String FOLLOWS_KEY = "follows:";
+    public static final String LOCK_FOLLOWS_RECONCILE_KEY = "lock:follows:reconcile";
+    public static final String FOLLOWS_DIRTY_KEY = "follow:reconcile:dirty";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:out:";
+    public static final String FEED_CELEBRITY_KEY = "feed:celebrity";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_NEAR_KEY = "shop:geo:near:";
+    public static final Long SHOP_GEO_NEAR_TTL = 60L;
+    public static final String LOCK_SHOP_GEO_LOAD_KEY = "lock:shop:geo:load";
+    public static final String SHOP_SEARCH_CHANNEL = "shop:search:update";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String LOCK_SIGN_ARCHIVE_KEY = "lock:sign:archive";
 }
@@ -1,34 +1,168 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.NamedThreadFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
 public class RedisIDMaker {
 
     private static final long BEGIN_TIMESTAMP = 1640995200L;
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /*异步预取号段的线程池，号段加载很快，少量线程即可*/
+    private static final ExecutorService SEGMENT_LOADER = new ThreadPoolExecutor(1, 2,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(64), new NamedThreadFactory("id-segment-", true));
 
     private StringRedisTemplate stringRedisTemplate;
 
+    /*每次INCRBY预取的序列号个数，小于等于1时每次调用都INCR*/
+    private final int segmentSize;
+
+    /*当前号段剩余量低于该值时异步预取下一个号段*/
+    private final long refillThreshold;
+
+    /*每个业务前缀一个号段缓冲*/
+    private final ConcurrentHashMap<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    /*缓存当天的日期字符串，避免每次格式化*/
+    private volatile DateKey dateKey = new DateKey(-1, null);
+
     public RedisIDMaker(StringRedisTemplate stringRedisTemplate) {
+        this(stringRedisTemplate, 0);
+    }
+
+    @Autowired
+    public RedisIDMaker(StringRedisTemplate stringRedisTemplate,
+                        @Value("${hmdp.id.segment-size:0}") int segmentSize) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentSize = segmentSize;
+        this.refillThreshold = Math.max(1, segmentSize / 5);
     }
 
     public long nextID(String keyPrefix){
         //生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = currentDate(nowSecond);
         //生成序列号
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count = segmentSize > 1
+                ? nextCountFromSegment(keyPrefix, date)
+                : stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
         //拼接并返回
         return timestamp << COUNT_BITS | count;
     }
 
+    private String currentDate(long nowSecond) {
+        long day = nowSecond / SECONDS_PER_DAY;
+        DateKey key = dateKey;
+        if(key.day != day){
+            key = new DateKey(day, LocalDate.ofEpochDay(day).format(DATE_FORMATTER));
+            dateKey = key;
+        }
+        return key.date;
+    }
+
+    /*号段模式：从本地号段无锁分配，用尽时切换到预取好的号段*/
+    private long nextCountFromSegment(String keyPrefix, String date) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while (true) {
+            Segment segment = buffer.current;
+            if(segment != null && segment.date.equals(date)){
+                long count = segment.cursor.getAndIncrement();
+                if(count <= segment.max){
+                    // 恰好到达阈值的线程负责触发预取
+                    if(segment.max - count == refillThreshold){
+                        prefetch(buffer, keyPrefix, date);
+                    }
+                    return count;
+                }
+            }
+            // 号段用尽或日期变化，加锁切换号段
+            synchronized (buffer) {
+                if(buffer.current != segment){
+                    continue;
+                }
+                Segment next = null;
+                CompletableFuture<Segment> future = buffer.nextFuture;
+                buffer.nextFuture = null;
+                if(future != null){
+                    try {
+                        next = future.join();
+                    } catch (CompletionException e) {
+                        next = null;
+                    }
+                }
+                if(next == null || !next.date.equals(date)){
+                    next = loadSegment(keyPrefix, date);
+                }
+                buffer.current = next;
+            }
+        }
+    }
+
+    private void prefetch(SegmentBuffer buffer, String keyPrefix, String date) {
+        synchronized (buffer) {
+            if(buffer.nextFuture == null){
+                try {
+                    buffer.nextFuture = CompletableFuture.supplyAsync(() -> loadSegment(keyPrefix, date), SEGMENT_LOADER);
+                } catch (RejectedExecutionException e) {
+                    // 预取队列已满，不影响取号，号段用尽时同步加载
+                    buffer.nextFuture = null;
+                }
+            }
+        }
+    }
+
+    /*INCRBY segmentSize，返回的值为号段上界*/
+    private Segment loadSegment(String keyPrefix, String date) {
+        Long max = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentSize);
+        return new Segment(date, max - segmentSize + 1, max);
+    }
+
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> nextFuture;
+    }
+
+    private static class Segment {
+        private final String date;
+        private final AtomicLong cursor;
+        private final long max;
+
+        private Segment(String date, long min, long max) {
+            this.date = date;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+        }
+    }
+
+    private static class DateKey {
+        private final long day;
+        private final String date;
+
+        private DateKey(long day, String date) {
+            this.day = day;
+            this.date = date;
+        }
+    }
+
 }
@@ -0,0 +1,185 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_RELEASE_CHANNEL;
+
+/*可重入分布式锁的创建和公共资源：
+ * 加锁、解锁、续期都是lua脚本，脚本只加载一次，之后用EVALSHA执行；
+ * 所有锁共用一个看门狗，每隔租期的1/3用pipeline续期本节点持有的所有锁，每个锁执行一次续期脚本；
+ * 所有锁共用一个释放通知频道，等待中的线程收到通知后立即重试，不需要轮询
+ * */
+@Slf4j
+@Component
+public class RedisLockFactory {
+
+    private static final String LOCK_PREFIX = "lock:";
+
+    /*每个pipeline最多续期的锁数*/
+    private static final int RENEW_BATCH = 500;
+
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static{
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("reentrant_lock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("reentrant_unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lock_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /*本节点标识，与线程id一起作为锁的持有者*/
+    private final String nodeId = UUID.randomUUID().toString(true);
+
+    /*看门狗租期*/
+    private final long leaseMillis;
+
+    /*需要续期的锁：锁key -> 持有者*/
+    private final Map<String, String> renewals = new ConcurrentHashMap<>();
+
+    /*正在等待的锁：锁key -> 等待信息*/
+    private final Map<String, WaitEntry> waiting = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService watchdog =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("lock-watchdog-", true));
+
+    public RedisLockFactory(StringRedisTemplate stringRedisTemplate,
+                            RedisMessageListenerContainer listenerContainer,
+                            @Value("${hmdp.lock.lease-ms:30000}") long leaseMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.leaseMillis = leaseMillis;
+        // 锁释放后唤醒本节点等待该锁的线程
+        listenerContainer.addMessageListener((message, pattern) -> {
+            WaitEntry entry = waiting.get(new String(message.getBody(), StandardCharsets.UTF_8));
+            if(entry != null){
+                entry.signal.release(entry.waiters);
+            }
+        }, new ChannelTopic(LOCK_RELEASE_CHANNEL));
+        long period = Math.max(1, leaseMillis / 3);
+        watchdog.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        watchdog.shutdownNow();
+    }
+
+    public ILock getLock(String name) {
+        return new RedisReentrantLock(LOCK_PREFIX + name, this);
+    }
+
+    /*当前线程作为持有者的标识*/
+    String currentOwner() {
+        return nodeId + ":" + Thread.currentThread().getId();
+    }
+
+    long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /*获取成功返回null，失败返回锁的剩余有效期（毫秒）；watchdog为true时由看门狗续期*/
+    Long acquire(String key, String owner, long leaseMillis, boolean watchdog) {
+        Long ttl = stringRedisTemplate.execute(LOCK_SCRIPT, Collections.singletonList(key),
+                String.valueOf(leaseMillis), owner);
+        if(ttl == null && watchdog){
+            renewals.put(key, owner);
+        }
+        return ttl;
+    }
+
+    void release(String key, String owner) {
+        Long result = stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key),
+                owner, LOCK_RELEASE_CHANNEL);
+        if(result == null || result < 0){
+            // 锁已过期或被其他线程持有，不能释放
+            renewals.remove(key, owner);
+            log.warn("释放锁失败，当前线程不是锁的持有者，key={}", key);
+            return;
+        }
+        if(result == 1){
+            renewals.remove(key, owner);
+        }
+    }
+
+    /*登记等待，必须在最后一次尝试加锁之前登记，才不会错过释放通知*/
+    WaitEntry subscribe(String key) {
+        return waiting.compute(key, (k, entry) -> {
+            WaitEntry e = entry == null ? new WaitEntry() : entry;
+            e.waiters++;
+            return e;
+        });
+    }
+
+    void unsubscribe(String key) {
+        waiting.computeIfPresent(key, (k, entry) -> --entry.waiters == 0 ? null : entry);
+    }
+
+    /*批量续期，已不再持有的锁移出续期列表
+     * 一次脚本只访问一个key，集群中不会因为多个锁位于不同slot而报CROSSSLOT；用pipeline减少往返
+     * pipeline中用EVAL而不是EVALSHA，脚本未缓存时不会因为NOSCRIPT整批失败
+     * */
+    private void renew() {
+        if(renewals.isEmpty()){
+            return;
+        }
+        try {
+            byte[] script = RENEW_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+            byte[] lease = String.valueOf(leaseMillis).getBytes(StandardCharsets.UTF_8);
+            List<Map.Entry<String, String>> entries = new ArrayList<>(renewals.entrySet());
+            for (int from = 0; from < entries.size(); from += RENEW_BATCH) {
+                List<Map.Entry<String, String>> batch = entries.subList(from, Math.min(entries.size(), from + RENEW_BATCH));
+                List<Object> held = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Map.Entry<String, String> entry : batch) {
+                        connection.scriptingCommands().eval(script, ReturnType.INTEGER, 1,
+                                entry.getKey().getBytes(StandardCharsets.UTF_8), lease,
+                                entry.getValue().getBytes(StandardCharsets.UTF_8));
+                    }
+                    return null;
+                });
+                for (int i = 0; i < held.size() && i < batch.size(); i++) {
+                    if(((Number) held.get(i)).longValue() == 0){
+                        renewals.remove(batch.get(i).getKey(), batch.get(i).getValue());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("锁续期失败", e);
+        }
+    }
+
+    static class WaitEntry {
+        final Semaphore signal = new Semaphore(0);
+        /*只在waiting.compute中修改*/
+        volatile int waiters;
+    }
+}
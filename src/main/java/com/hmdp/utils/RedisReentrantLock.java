@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/*可重入分布式锁，同一个线程可以多次获取，释放相同次数后才真正释放；
+ * tryLock(time)使用固定租期，lock(timeout)由看门狗续期，持有期间不会过期
+ * 通过RedisLockFactory.getLock创建
+ * */
+public class RedisReentrantLock implements ILock {
+
+    private final String key;
+    private final RedisLockFactory factory;
+
+    RedisReentrantLock(String key, RedisLockFactory factory) {
+        this.key = key;
+        this.factory = factory;
+    }
+
+    @Override
+    public Boolean tryLock(Long time) {
+        return factory.acquire(key, factory.currentOwner(), TimeUnit.SECONDS.toMillis(time), false) == null;
+    }
+
+    @Override
+    public boolean lock(long timeout, TimeUnit unit) throws InterruptedException {
+        String owner = factory.currentOwner();
+        long lease = factory.getLeaseMillis();
+        // 1.先尝试一次，没有竞争时不需要订阅
+        Long ttl = factory.acquire(key, owner, lease, true);
+        if(ttl == null){
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        RedisLockFactory.WaitEntry entry = factory.subscribe(key);
+        try {
+            while (true) {
+                // 2.登记等待后再次尝试
+                ttl = factory.acquire(key, owner, lease, true);
+                if(ttl == null){
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0){
+                    return false;
+                }
+                // 3.等待释放通知，最多等到锁过期或超时
+                long wait = ttl > 0 ? Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(ttl)) : remaining;
+                entry.signal.tryAcquire(wait, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            factory.unsubscribe(key);
+        }
+    }
+
+    @Override
+    public void unLock() {
+        factory.release(key, factory.currentOwner());
+    }
+}
@@ -1,25 +1,17 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
-import com.hmdp.dto.UserDTO;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
-
-import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
-import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
 
 public class RefreshTokenInterceptor implements HandlerInterceptor {
 
-    private StringRedisTemplate stringRedisTemplate;
+    private LoginSessionManager loginSessionManager;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate){
-        this.stringRedisTemplate = stringRedisTemplate;
+    public RefreshTokenInterceptor(LoginSessionManager loginSessionManager){
+        this.loginSessionManager = loginSessionManager;
     }
 
     @Override
@@ -30,19 +22,18 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         if(StrUtil.isBlank(token)){
             return true;
         }
-        // 通过token获取redis中用户数据
-        String key = LOGIN_USER_KEY+token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(key);
+        // 通过token获取用户数据，优先读本地缓存，有效期由LoginSessionManager定时批量刷新
+        LoginSessionManager.Session session = loginSessionManager.getSession(token);
         // 用户为空，直接放行
-        if(userMap.isEmpty()){
+        if(session == null){
             return true;
         }
-        // 将hashMap数据转为user对象
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
         // 存在，保存用户到threadlocal中
-        UserHolder.saveUser(userDTO);
-        // 刷新有效期
-        stringRedisTemplate.expire(key, LOGIN_USER_TTL, TimeUnit.MINUTES);
+        UserHolder.saveUser(session.getUser());
+        // 签名token快过期时通过响应头返回新token，前端收到后替换本地保存的token
+        if(session.getRenewedToken() != null){
+            response.setHeader("authorization", session.getRenewedToken());
+        }
 
         return true;
     }
@@ -0,0 +1,420 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/*秒杀数据对账：redis中的库存、下单用户set与数据库中的库存、订单
+ * 逐个秒杀券按voucher_id游标读取tb_seckill_voucher，每个秒杀券：
+ *   1.按(voucher_id, user_id)唯一索引游标读取订单，每批用pipeline判断用户是否在redis的set中，缺失的补写（dbOnly）；
+ *   2.SSCAN下单用户set，每批用一次IN查询判断是否有订单，没有的只报告，可能还在消息队列中（redisOnly）；
+ *   3.redis库存+redis下单数 应等于 数据库库存+数据库订单数，不相等时报告，秒杀时间外按数据库修正redis库存（stockDrift），
+ *     修正后的库存平均分到各分片；
+ * 最后SCAN所有库存key，数据库中不存在的秒杀券的key报告（orphanStockKeys），连续两次对账都是孤立的key才删除，
+ * 避免删除事务尚未提交的新秒杀券的库存
+ * 内存中最多保留一批数据和有限个样例；报告保存到redis，任意节点可查询
+ * */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    /*报告中最多保留的样例数*/
+    private static final int MAX_SAMPLES = 50;
+
+    /*每次读取的秒杀券数*/
+    private static final int VOUCHER_CHUNK_SIZE = 500;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ISeckillVoucherService seckillVoucherService;
+    private final IVoucherOrderService voucherOrderService;
+    private final long intervalMinutes;
+    private final int chunkSize;
+    private final boolean repair;
+
+    private final ScheduledExecutorService reconcileExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("seckill-reconcile-", true));
+
+    public SeckillReconciler(StringRedisTemplate stringRedisTemplate,
+                             ISeckillVoucherService seckillVoucherService,
+                             IVoucherOrderService voucherOrderService,
+                             @Value("${hmdp.seckill.reconcile.interval-minutes:60}") long intervalMinutes,
+                             @Value("${hmdp.seckill.reconcile.chunk-size:1000}") int chunkSize,
+                             @Value("${hmdp.seckill.reconcile.repair:false}") boolean repair) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillVoucherService = seckillVoucherService;
+        this.voucherOrderService = voucherOrderService;
+        this.intervalMinutes = intervalMinutes;
+        this.chunkSize = chunkSize;
+        this.repair = repair;
+        // 启动时消息队列中可能还有积压，第一次对账延后一个周期
+        reconcileExecutor.scheduleWithFixedDelay(this::reconcile, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        reconcileExecutor.shutdownNow();
+    }
+
+    /*最近一次对账报告，还没有执行过时返回空*/
+    public Map<String, Object> queryLastReport() {
+        String json = stringRedisTemplate.opsForValue().get(SECKILL_RECONCILE_REPORT_KEY);
+        return json == null ? Collections.emptyMap() : JSONUtil.parseObj(json);
+    }
+
+    /*多节点只有一个执行，锁不主动释放，一个周期内不会重复执行*/
+    private void reconcile() {
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_SECKILL_RECONCILE_KEY, "1",
+                Math.max(1, intervalMinutes - 1), TimeUnit.MINUTES);
+        if(!BooleanUtil.isTrue(locked)){
+            return;
+        }
+        Report report = new Report();
+        long lastVoucherId = 0;
+        try {
+            while (true) {
+                List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                        .gt("voucher_id", lastVoucherId).orderByAsc("voucher_id")
+                        .last("limit " + VOUCHER_CHUNK_SIZE).list();
+                if(vouchers.isEmpty()){
+                    break;
+                }
+                for (SeckillVoucher voucher : vouchers) {
+                    reconcileVoucher(voucher, report);
+                    report.vouchers++;
+                }
+                lastVoucherId = vouchers.get(vouchers.size() - 1).getVoucherId();
+            }
+            scanOrphanStockKeys(report);
+            // 本次的孤立key作为下一次对账的候选
+            stringRedisTemplate.delete(SECKILL_RECONCILE_ORPHAN_KEY);
+            if(BooleanUtil.isTrue(stringRedisTemplate.hasKey(SECKILL_RECONCILE_ORPHAN_NEXT_KEY))){
+                stringRedisTemplate.rename(SECKILL_RECONCILE_ORPHAN_NEXT_KEY, SECKILL_RECONCILE_ORPHAN_KEY);
+            }
+            report.finished = true;
+        } catch (Exception e) {
+            log.error("秒杀对账失败，已处理到秒杀券" + lastVoucherId, e);
+        }
+        Map<String, Object> result = report.toMap();
+        stringRedisTemplate.opsForValue().set(SECKILL_RECONCILE_REPORT_KEY, JSONUtil.toJsonStr(result));
+        log.info("秒杀对账完成：" + result.entrySet().stream().filter(e -> !"samples".equals(e.getKey()))
+                .map(Map.Entry::toString).collect(Collectors.joining(", ")));
+    }
+
+    private void reconcileVoucher(SeckillVoucher voucher, Report report) throws IOException {
+        long voucherId = voucher.getVoucherId();
+        int shards = voucher.getShards() == null ? 1 : Math.max(1, voucher.getShards());
+        // 结束超过保留期的秒杀券，redis中的数据已经过期，不再比较，也不能补写出没有过期时间的set
+        if(voucher.getEndTime() != null && SeckillVoucherSnapshot.expireAt(voucher.getEndTime()
+                .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()) <= System.currentTimeMillis()){
+            report.expired++;
+            return;
+        }
+        // 1.数据库 -> redis
+        long dbOrders = checkDbOrders(voucherId, shards, report);
+        // 2.redis -> 数据库
+        long redisOrders = 0;
+        for (String orderKey : orderKeys(voucherId, shards)) {
+            redisOrders += checkRedisOrders(voucherId, orderKey, report);
+        }
+        report.dbOrders += dbOrders;
+        report.redisOrders += redisOrders;
+        // 3.库存
+        List<String> stockKeys = SeckillStockShards.stockKeys(voucherId, shards);
+        List<String> rawStocks = stringRedisTemplate.opsForValue().multiGet(stockKeys);
+        Long redisStock = SeckillStockShards.sumStock(rawStocks);
+        LocalDateTime now = LocalDateTime.now();
+        boolean active = (voucher.getBeginTime() == null || !now.isBefore(voucher.getBeginTime()))
+                && (voucher.getEndTime() == null || !now.isAfter(voucher.getEndTime()));
+        if(redisStock == null){
+            // 已结束的秒杀券，redis数据过期后不再比较
+            if(active){
+                report.missingStockKeys++;
+                report.sample("missingStockKey", voucherId, null);
+            }
+            return;
+        }
+        long drift = (redisStock + redisOrders) - (voucher.getStock() + dbOrders);
+        if(drift == 0){
+            return;
+        }
+        report.stockDrift++;
+        report.sample("stockDrift", voucherId, "redisStock=" + redisStock + ",redisOrders=" + redisOrders
+                + ",dbStock=" + voucher.getStock() + ",dbOrders=" + dbOrders);
+        // 秒杀进行中，两边的计数不是同一时刻的，只报告不修正
+        if(repair && !active){
+            repairStock(voucher, stockKeys, rawStocks, dbOrders, redisOrders, report);
+        }
+    }
+
+    /*redis库存应为 数据库库存+数据库订单数-redis下单数，平均分到各分片，余数分给前面的分片；
+     * 按各分片的原始值INCRBY到目标值，负数的分片也会被修正，保留key的过期时间；有分片key不存在时不修正
+     * */
+    private void repairStock(SeckillVoucher voucher, List<String> stockKeys, List<String> rawStocks,
+                             long dbOrders, long redisOrders, Report report) {
+        if(rawStocks == null || rawStocks.contains(null)){
+            return;
+        }
+        long target = Math.max(0, voucher.getStock() + dbOrders - redisOrders);
+        int shards = stockKeys.size();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < shards; i++) {
+                long shardTarget = target / shards + (i < target % shards ? 1 : 0);
+                long delta = shardTarget - Long.parseLong(rawStocks.get(i));
+                if(delta != 0){
+                    connection.stringCommands().incrBy(bytes(stockKeys.get(i)), delta);
+                }
+            }
+            return null;
+        });
+        report.repaired++;
+    }
+
+    /*按用户id游标读取订单，返回订单数；redis的set中缺失的用户补写，避免重复下单*/
+    private long checkDbOrders(long voucherId, int shards, Report report) {
+        long count = 0;
+        long lastUserId = 0;
+        while (true) {
+            List<Long> userIds = voucherOrderService.listObjs(new QueryWrapper<VoucherOrder>().select("user_id")
+                    .eq("voucher_id", voucherId).gt("user_id", lastUserId)
+                    .orderByAsc("user_id").last("limit " + chunkSize),
+                    o -> Long.valueOf(o.toString()));
+            if(userIds.isEmpty()){
+                return count;
+            }
+            count += userIds.size();
+            lastUserId = userIds.get(userIds.size() - 1);
+            List<Object> members = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long userId : userIds) {
+                    connection.setCommands().sIsMember(orderKey(voucherId, shards, userId), bytes(userId.toString()));
+                }
+                return null;
+            });
+            List<Long> missing = new ArrayList<>();
+            for (int i = 0; i < userIds.size(); i++) {
+                if(!BooleanUtil.isTrue((Boolean) members.get(i))){
+                    missing.add(userIds.get(i));
+                }
+            }
+            if(missing.isEmpty()){
+                continue;
+            }
+            report.dbOnly += missing.size();
+            missing.forEach(userId -> report.sample("dbOnly", voucherId, "userId=" + userId));
+            if(repair){
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Long userId : missing) {
+                        connection.setCommands().sAdd(orderKey(voucherId, shards, userId), bytes(userId.toString()));
+                    }
+                    return null;
+                });
+                report.repaired += missing.size();
+            }
+        }
+    }
+
+    /*SSCAN下单用户set，每批查询一次数据库，返回set的大小*/
+    private long checkRedisOrders(long voucherId, String orderKey, Report report) throws IOException {
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(orderKey,
+                ScanOptions.scanOptions().count(chunkSize).build())) {
+            List<Long> chunk = new ArrayList<>(chunkSize);
+            while (cursor.hasNext()) {
+                chunk.add(Long.valueOf(cursor.next()));
+                if(chunk.size() >= chunkSize){
+                    checkRedisChunk(voucherId, chunk, report);
+                    chunk.clear();
+                }
+            }
+            if(!chunk.isEmpty()){
+                checkRedisChunk(voucherId, chunk, report);
+            }
+        }
+        // SSCAN可能返回重复的元素，数量以SCARD为准
+        Long size = stringRedisTemplate.opsForSet().size(orderKey);
+        return size == null ? 0 : size;
+    }
+
+    private void checkRedisChunk(long voucherId, List<Long> userIds, Report report) {
+        Set<Long> ordered = new HashSet<>(voucherOrderService.listObjs(new QueryWrapper<VoucherOrder>()
+                .select("user_id").eq("voucher_id", voucherId).in("user_id", userIds),
+                o -> Long.valueOf(o.toString())));
+        for (Long userId : userIds) {
+            if(!ordered.contains(userId)){
+                // 订单可能还在消息队列中，也可能已丢失，只报告
+                report.redisOnly++;
+                report.sample("redisOnly", voucherId, "userId=" + userId);
+            }
+        }
+    }
+
+    /*SCAN所有库存key，秒杀券已不存在的报告；开启修正时，上一次对账也是孤立的key删除，其余的记为候选*/
+    private void scanOrphanStockKeys(Report report) {
+        // 上一次中途失败时留下的候选不算数
+        stringRedisTemplate.delete(SECKILL_RECONCILE_ORPHAN_NEXT_KEY);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            ScanOptions options = ScanOptions.scanOptions().match(SECKILL_STOCK_KEY + "*").count(chunkSize).build();
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                Map<Long, List<byte[]>> chunk = new LinkedHashMap<>();
+                while (cursor.hasNext()) {
+                    byte[] key = cursor.next();
+                    Long voucherId = parseVoucherId(new String(key, StandardCharsets.UTF_8));
+                    if(voucherId == null){
+                        continue;
+                    }
+                    chunk.computeIfAbsent(voucherId, k -> new ArrayList<>()).add(key);
+                    if(chunk.size() >= chunkSize){
+                        checkOrphanChunk(connection, chunk, report);
+                        chunk.clear();
+                    }
+                }
+                if(!chunk.isEmpty()){
+                    checkOrphanChunk(connection, chunk, report);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        });
+    }
+
+    private void checkOrphanChunk(RedisConnection connection, Map<Long, List<byte[]>> chunk, Report report) {
+        Set<Long> existing = new HashSet<>(seckillVoucherService.listObjs(new QueryWrapper<SeckillVoucher>()
+                .select("voucher_id").in("voucher_id", chunk.keySet()),
+                o -> Long.valueOf(o.toString())));
+        chunk.forEach((voucherId, keys) -> {
+            if(existing.contains(voucherId)){
+                return;
+            }
+            report.orphanStockKeys += keys.size();
+            report.sample("orphanStockKey", voucherId, null);
+            if(!repair){
+                return;
+            }
+            for (byte[] key : keys) {
+                if(BooleanUtil.isTrue(connection.setCommands().sIsMember(bytes(SECKILL_RECONCILE_ORPHAN_KEY), key))){
+                    connection.keyCommands().del(key);
+                    report.repaired++;
+                } else {
+                    connection.setCommands().sAdd(bytes(SECKILL_RECONCILE_ORPHAN_NEXT_KEY), key);
+                }
+            }
+        });
+    }
+
+    /*seckill:stock:id 或 seckill:stock:{id:i}，无法解析时返回null*/
+    private static Long parseVoucherId(String key) {
+        String id = key.substring(SECKILL_STOCK_KEY.length());
+        if(id.startsWith("{")){
+            int colon = id.indexOf(':');
+            id = colon < 0 ? "" : id.substring(1, colon);
+        }
+        try {
+            return Long.valueOf(id);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static List<String> orderKeys(long voucherId, int shards) {
+        if(shards <= 1){
+            return Collections.singletonList(SECKILL_ORDER_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(SeckillStockShards.orderKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /*用户所在分片的下单用户set*/
+    private static byte[] orderKey(long voucherId, int shards, long userId) {
+        String key = shards <= 1 ? SECKILL_ORDER_KEY + voucherId
+                : SeckillStockShards.orderKey(voucherId, SeckillStockShards.shardOf(userId, shards));
+        return bytes(key);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*对账结果，只保留计数和有限个样例*/
+    private class Report {
+        private final long begin = System.currentTimeMillis();
+        private boolean finished;
+        private long vouchers;
+        private long expired;
+        private long dbOrders;
+        private long redisOrders;
+        private long dbOnly;
+        private long redisOnly;
+        private long stockDrift;
+        private long missingStockKeys;
+        private long orphanStockKeys;
+        private long repaired;
+        private final List<Map<String, Object>> samples = new ArrayList<>();
+
+        private void sample(String type, long voucherId, String detail) {
+            if(samples.size() >= MAX_SAMPLES){
+                return;
+            }
+            Map<String, Object> sample = new LinkedHashMap<>(4);
+            sample.put("type", type);
+            sample.put("voucherId", voucherId);
+            if(detail != null){
+                sample.put("detail", detail);
+            }
+            samples.add(sample);
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("beginTime", begin);
+            map.put("costMillis", System.currentTimeMillis() - begin);
+            map.put("finished", finished);
+            map.put("repair", repair);
+            map.put("vouchers", vouchers);
+            map.put("expired", expired);
+            map.put("dbOrders", dbOrders);
+            map.put("redisOrders", redisOrders);
+            map.put("dbOnly", dbOnly);
+            map.put("redisOnly", redisOnly);
+            map.put("stockDrift", stockDrift);
+            map.put("missingStockKeys", missingStockKeys);
+            map.put("orphanStockKeys", orphanStockKeys);
+            map.put("repaired", repaired);
+            map.put("samples", samples);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/*秒杀请求进入redis之前的本地拦截：
+ * 售罄标记：lua脚本返回库存不足时本地标记并广播，之后各节点直接拒绝，标记过期后放行一个请求重新确认；
+ * 令牌桶（可选）：每个秒杀券的令牌数按 redis实时库存 x factor 定期重置，
+ * 没有令牌的请求不进入redis，进入redis的请求数与库存成正比，而不是与请求数成正比
+ * */
+@Slf4j
+@Component
+public class SeckillStockGate {
+
+    /*一段时间没有请求的秒杀券不再刷新令牌*/
+    private static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillVoucherSnapshot seckillVoucherSnapshot;
+    private final long soldOutTtlMillis;
+    private final boolean gateEnabled;
+    private final double factor;
+
+    /*秒杀券id -> 售罄标记的过期时间*/
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    /*秒杀券id -> 令牌桶*/
+    private final Map<Long, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private final LongAdder soldOutRejected = new LongAdder();
+    private final LongAdder gateRejected = new LongAdder();
+    private final LongAdder admitted = new LongAdder();
+
+    private final ScheduledExecutorService refillExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("seckill-gate-refill-", true));
+
+    public SeckillStockGate(StringRedisTemplate stringRedisTemplate,
+                            RedisMessageListenerContainer listenerContainer,
+                            SeckillVoucherSnapshot seckillVoucherSnapshot,
+                            @Value("${hmdp.seckill.gate.sold-out-ttl-seconds:600}") long soldOutTtlSeconds,
+                            @Value("${hmdp.seckill.gate.enabled:false}") boolean gateEnabled,
+                            @Value("${hmdp.seckill.gate.factor:1.5}") double factor,
+                            @Value("${hmdp.seckill.gate.refill-ms:500}") long refillMs) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillVoucherSnapshot = seckillVoucherSnapshot;
+        this.soldOutTtlMillis = TimeUnit.SECONDS.toMillis(soldOutTtlSeconds);
+        this.gateEnabled = gateEnabled;
+        this.factor = factor;
+        // 其他节点发现的售罄
+        listenerContainer.addMessageListener((message, pattern) ->
+                markLocal(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        if(gateEnabled){
+            refillExecutor.scheduleWithFixedDelay(this::refill, refillMs, refillMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refillExecutor.shutdownNow();
+    }
+
+    /*本节点是否已知售罄*/
+    public boolean isSoldOut(long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if(expireAt == null){
+            return false;
+        }
+        if(expireAt < System.currentTimeMillis()){
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        soldOutRejected.increment();
+        return true;
+    }
+
+    /*lua脚本返回库存不足时调用，通知所有节点*/
+    public void markSoldOut(long voucherId) {
+        markLocal(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, String.valueOf(voucherId));
+    }
+
+    private void markLocal(Long voucherId) {
+        soldOut.put(voucherId, System.currentTimeMillis() + soldOutTtlMillis);
+        Bucket bucket = buckets.get(voucherId);
+        if(bucket != null){
+            bucket.tokens.set(0);
+        }
+    }
+
+    /*取一个令牌，未开启时总是成功；第一次请求的秒杀券读取一次库存作为初始令牌*/
+    public boolean tryAcquire(long voucherId) {
+        if(!gateEnabled){
+            return true;
+        }
+        Bucket bucket = buckets.computeIfAbsent(voucherId, id -> new Bucket(tokensOf(SeckillStockShards.sumStock(
+                stringRedisTemplate.opsForValue().multiGet(stockKeysOf(id))))));
+        bucket.lastAccess = System.currentTimeMillis();
+        if(bucket.tokens.getAndDecrement() > 0){
+            admitted.increment();
+            return true;
+        }
+        // 避免一直减成很小的负数，下次重置前保持为0
+        bucket.tokens.set(0);
+        gateRejected.increment();
+        return false;
+    }
+
+    /*一次MGET读取所有活跃秒杀券的实时库存（分片库存读取所有分片求和），重置令牌数；库存key存在且为0的直接标记售罄*/
+    private void refill() {
+        try {
+            long now = System.currentTimeMillis();
+            buckets.entrySet().removeIf(e -> now - e.getValue().lastAccess > IDLE_MILLIS);
+            if(buckets.isEmpty()){
+                return;
+            }
+            List<Long> ids = new ArrayList<>(buckets.keySet());
+            List<String> keys = new ArrayList<>(ids.size());
+            int[] offsets = new int[ids.size() + 1];
+            for (int i = 0; i < ids.size(); i++) {
+                keys.addAll(stockKeysOf(ids.get(i)));
+                offsets[i + 1] = keys.size();
+            }
+            List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; stocks != null && i < ids.size(); i++) {
+                Bucket bucket = buckets.get(ids.get(i));
+                if(bucket == null){
+                    continue;
+                }
+                Long stock = SeckillStockShards.sumStock(stocks.subList(offsets[i], offsets[i + 1]));
+                long tokens = tokensOf(stock);
+                // 库存key都不存在时不是售罄（库存还没有写入或已过期），只是不发令牌
+                if(stock != null && tokens == 0){
+                    markLocal(ids.get(i));
+                }
+                bucket.tokens.set(tokens);
+            }
+        } catch (Exception e) {
+            log.error("刷新秒杀令牌失败", e);
+        }
+    }
+
+    private List<String> stockKeysOf(long voucherId) {
+        return SeckillStockShards.stockKeys(voucherId, seckillVoucherSnapshot.shardsOf(voucherId));
+    }
+
+    private long tokensOf(Long stock) {
+        long remaining = stock == null ? 0 : stock;
+        return (long) Math.ceil(remaining * factor);
+    }
+
+    public Map<String, Object> queryGateMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("gateEnabled", gateEnabled);
+        metrics.put("soldOutVouchers", soldOut.size());
+        metrics.put("soldOutRejected", soldOutRejected.sum());
+        metrics.put("gateRejected", gateRejected.sum());
+        metrics.put("admitted", admitted.sum());
+        return metrics;
+    }
+
+    private static class Bucket {
+        private final AtomicLong tokens;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private Bucket(long tokens) {
+            this.tokens = new AtomicLong(tokens);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/*超热秒杀券的分片库存：
+ * 库存平均分到N个分片，每个分片的库存key和下单用户set带相同的hash tag：seckill:stock:{id:i}、seckill:order{id:i}，
+ * 集群中不同分片落在不同节点上；用户按id固定路由到一个分片，在该分片上判断一人一单并扣库存；
+ * 本分片库存不足时依次向后面的分片借一个库存，借到后再把用户写入自己分片的set，已存在则归还，一人一单仍然成立；
+ * 本节点记录最近确认为空的分片，借库存时先跳过；没有借到时再不跳过地检查一遍所有分片，确认都没有库存才视为售罄
+ * */
+@Slf4j
+@Component
+public class SeckillStockShards {
+
+    /*分片的秒杀结果，与seckill.lua一致：0成功，1库存不足，2重复下单，3未开始，4已结束*/
+    public static final int OK = 0;
+    public static final int SOLD_OUT = 1;
+    public static final int DUPLICATE = 2;
+    /*库存key不存在：秒杀券刚新增、库存还没有写入，或数据已过期；不是售罄*/
+    public static final int STOCK_MISSING = 7;
+    private static final int SHARD_EMPTY = 5;
+
+    /*分片数上限*/
+    public static final int MAX_SHARDS = 64;
+
+    /*写入消息队列的最多尝试次数*/
+    private static final int XADD_ATTEMPTS = 3;
+
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> BORROW_SCRIPT;
+    static{
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+        BORROW_SCRIPT = new DefaultRedisScript<>();
+        BORROW_SCRIPT.setLocation(new ClassPathResource("seckill_borrow.lua"));
+        BORROW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final long emptyTtlMillis;
+
+    /*秒杀券id -> 每个分片被确认为空的过期时间；秒杀结束后由快照刷新删除*/
+    private final Map<Long, AtomicLongArray> emptyShards = new ConcurrentHashMap<>();
+
+    private final LongAdder local = new LongAdder();
+    private final LongAdder borrowed = new LongAdder();
+    private final LongAdder borrowMisses = new LongAdder();
+    private final LongAdder returned = new LongAdder();
+    private final LongAdder fullChecks = new LongAdder();
+
+    public SeckillStockShards(StringRedisTemplate stringRedisTemplate,
+                              @Value("${hmdp.seckill.shard.empty-ttl-ms:1000}") long emptyTtlMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.emptyTtlMillis = emptyTtlMillis;
+    }
+
+    public static String stockKey(long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /*秒杀券的所有库存key，未分片时只有seckill:stock:id*/
+    public static List<String> stockKeys(long voucherId, int shards) {
+        if(shards <= 1){
+            return Collections.singletonList(SECKILL_STOCK_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /*各分片库存之和，key都不存在时返回null*/
+    public static Long sumStock(List<String> stocks) {
+        Long total = null;
+        for (String stock : stocks) {
+            if(stock != null){
+                total = (total == null ? 0 : total) + Math.max(0, Long.parseLong(stock));
+            }
+        }
+        return total;
+    }
+
+    /*用户固定路由到一个分片*/
+    public static int shardOf(long userId, int shards) {
+        return (int) ((BloomFilter.mix(userId) & Long.MAX_VALUE) % shards);
+    }
+
+    /*新增秒杀券时写入各分片的库存，余数分给前面的分片；未分片时写入seckill:stock:id*/
+    public void initStock(long voucherId, int shards, int stock) {
+        if(shards <= 1){
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            return;
+        }
+        Map<String, String> stocks = new LinkedHashMap<>(shards * 2);
+        for (int i = 0; i < shards; i++) {
+            stocks.put(stockKey(voucherId, i), String.valueOf(stock / shards + (i < stock % shards ? 1 : 0)));
+        }
+        // 集群模式下按slot拆分执行
+        stringRedisTemplate.opsForValue().multiSet(stocks);
+    }
+
+    /*分片库存的秒杀，window为本地快照中的{开始时间, 结束时间, ...}；成功时订单已写入消息队列*/
+    public int seckill(long voucherId, int shards, long userId, long orderId, long[] window) {
+        String user = String.valueOf(userId);
+        int home = shardOf(userId, shards);
+        String orderKey = orderKey(voucherId, home);
+        // 1.在自己的分片上判断时间、一人一单并扣库存
+        Long r = stringRedisTemplate.execute(SECKILL_SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey),
+                user, String.valueOf(window[0]), String.valueOf(window[1]));
+        int result = r.intValue();
+        String stockKey = stockKey(voucherId, home);
+        if(result == SHARD_EMPTY){
+            // 2.自己的分片已空，依次向后面的分片借库存
+            AtomicLongArray empty = emptyShards.computeIfAbsent(voucherId, id -> new AtomicLongArray(shards));
+            long now = System.currentTimeMillis();
+            empty.set(home, now + emptyTtlMillis);
+            stockKey = borrow(voucherId, shards, home, empty, now);
+            if(stockKey == null){
+                borrowMisses.increment();
+                return SOLD_OUT;
+            }
+            // 3.借到后记录用户，已经下过单的归还借到的库存
+            Long added = stringRedisTemplate.opsForSet().add(orderKey, user);
+            if(added == null || added == 0){
+                stringRedisTemplate.opsForValue().increment(stockKey);
+                returned.increment();
+                return DUPLICATE;
+            }
+            borrowed.increment();
+        } else if(result != OK){
+            return result;
+        } else {
+            local.increment();
+        }
+        // 4.分片key与消息队列不在同一个slot，在脚本之外写入队列，失败时重试
+        Map<String, String> message = new LinkedHashMap<>(4);
+        message.put("userId", user);
+        message.put("voucherId", String.valueOf(voucherId));
+        message.put("id", String.valueOf(orderId));
+        for (int attempt = 1; ; attempt++) {
+            try {
+                stringRedisTemplate.opsForStream().add(SECKILL_ORDER_STREAM, message);
+                return OK;
+            } catch (RuntimeException e) {
+                if(attempt < XADD_ATTEMPTS){
+                    log.warn("订单写入消息队列失败，第{}次重试，orderId={}", attempt, orderId);
+                    continue;
+                }
+                // 5.仍然失败，归还库存和购买资格，用户可以重新下单；
+                // 超时时消息可能已经写入，这时数据库扣库存和一人一单约束会拦住重复的订单
+                log.error("订单写入消息队列失败，归还库存，voucherId={}，userId={}，orderId={}", voucherId, userId, orderId, e);
+                release(stockKey, orderKey, user);
+                throw e;
+            }
+        }
+    }
+
+    /*归还扣减的库存和购买资格*/
+    private void release(String stockKey, String orderKey, String user) {
+        try {
+            stringRedisTemplate.opsForSet().remove(orderKey, user);
+            stringRedisTemplate.opsForValue().increment(stockKey);
+            returned.increment();
+        } catch (RuntimeException e) {
+            log.error("归还库存失败，stockKey={}，user={}", stockKey, user, e);
+        }
+    }
+
+    /*返回借到库存的分片key，所有分片都为空时返回null
+     * 本地标记为空的分片可能已经归还了库存，先跳过它们借一遍，没有借到时再检查跳过的分片
+     * */
+    private String borrow(long voucherId, int shards, int home, AtomicLongArray empty, long now) {
+        boolean skipped = false;
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            if(empty.get(shard) > now){
+                skipped = true;
+                continue;
+            }
+            String key = tryBorrow(voucherId, shard, empty, now);
+            if(key != null){
+                return key;
+            }
+        }
+        if(!skipped){
+            return null;
+        }
+        fullChecks.increment();
+        for (int i = 0; i < shards; i++) {
+            int shard = (home + i) % shards;
+            String key = tryBorrow(voucherId, shard, empty, now);
+            if(key != null){
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private String tryBorrow(long voucherId, int shard, AtomicLongArray empty, long now) {
+        String key = stockKey(voucherId, shard);
+        Long got = stringRedisTemplate.execute(BORROW_SCRIPT, Collections.singletonList(key));
+        if(got != null && got == 1){
+            empty.set(shard, 0);
+            return key;
+        }
+        empty.set(shard, now + emptyTtlMillis);
+        return null;
+    }
+
+    /*秒杀券快照刷新时调用，删除已结束秒杀券的空分片标记，结束后的请求在本地就被拒绝，不再需要*/
+    public void retain(Set<Long> activeVoucherIds) {
+        emptyShards.keySet().retainAll(activeVoucherIds);
+    }
+
+    public Map<String, Object> queryShardMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("local", local.sum());
+        metrics.put("borrowed", borrowed.sum());
+        metrics.put("borrowMisses", borrowMisses.sum());
+        metrics.put("returned", returned.sum());
+        metrics.put("fullChecks", fullChecks.sum());
+        return metrics;
+    }
+}
@@ -0,0 +1,228 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.SeckillVoucher;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/*秒杀券时间窗口：
+ * redis中每个秒杀券一个hash（begin、end、stock、shards），由seckill.lua用redis服务器时间原子判断；
+ * 各节点保存一份不可变的本地快照，不在时间窗口内的请求直接拒绝，不访问redis；
+ * 新增秒杀券提交后写入hash并广播，各节点替换快照；定期从数据库重新加载，并重写hash和过期时间；
+ * hash、库存key和下单用户set在秒杀结束一天后一起过期，之后不能再下单
+ * */
+@Slf4j
+@Component
+public class SeckillVoucherSnapshot {
+
+    public static final int OK = 0;
+    public static final int NOT_STARTED = 3;
+    public static final int ENDED = 4;
+
+    /*结束超过该时间的秒杀券不再加载，redis中的数据也在此时过期*/
+    public static final long ENDED_RETAIN_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillStockShards seckillStockShards;
+    private final long refreshSeconds;
+
+    /*秒杀券id -> {开始时间, 结束时间, 库存分片数}，时间为毫秒；只整体替换，不修改*/
+    private volatile Map<Long, long[]> windows = Collections.emptyMap();
+
+    /*加载未结束或刚结束的秒杀券*/
+    private volatile Supplier<List<SeckillVoucher>> loader;
+
+    private final ScheduledExecutorService refreshExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("seckill-voucher-refresh-", true));
+
+    public SeckillVoucherSnapshot(StringRedisTemplate stringRedisTemplate,
+                                  SeckillStockShards seckillStockShards,
+                                  RedisMessageListenerContainer listenerContainer,
+                                  @Value("${hmdp.seckill.voucher.refresh-seconds:60}") long refreshSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillStockShards = seckillStockShards;
+        this.refreshSeconds = refreshSeconds;
+        // 其他节点新增的秒杀券：id,begin,end,shards
+        listenerContainer.addMessageListener((message, pattern) -> {
+            List<String> parts = StrUtil.split(new String(message.getBody(), StandardCharsets.UTF_8), ',');
+            apply(Long.valueOf(parts.get(0)), Long.parseLong(parts.get(1)), Long.parseLong(parts.get(2)),
+                    parts.size() > 3 ? Integer.parseInt(parts.get(3)) : 1);
+        }, new ChannelTopic(SECKILL_VOUCHER_CHANNEL));
+    }
+
+    /*注册加载函数后立即加载一次，之后定期重新加载*/
+    public void register(Supplier<List<SeckillVoucher>> loader) {
+        this.loader = loader;
+        refreshExecutor.scheduleWithFixedDelay(this::refresh, 0, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdownNow();
+    }
+
+    /*判断是否在秒杀时间内，快照中没有的秒杀券返回OK，交给lua脚本判断*/
+    public int check(long voucherId) {
+        long[] window = windows.get(voucherId);
+        if(window == null){
+            return OK;
+        }
+        long now = System.currentTimeMillis();
+        if(now < window[0]){
+            return NOT_STARTED;
+        }
+        return now > window[1] ? ENDED : OK;
+    }
+
+    /*库存分片数，未分片或快照中没有时返回1*/
+    public int shardsOf(long voucherId) {
+        long[] window = windows.get(voucherId);
+        return window == null ? 1 : (int) window[2];
+    }
+
+    /*{开始时间, 结束时间, 库存分片数}，快照中没有时返回null；返回的数组不能修改*/
+    public long[] windowOf(long voucherId) {
+        return windows.get(voucherId);
+    }
+
+    /*新增秒杀券后调用：事务提交后写入库存和redis中的秒杀信息，并通知所有节点；回滚时不写入
+     * 库存key先写入，writeRedis再为它设置过期时间
+     * */
+    public void publish(SeckillVoucher voucher) {
+        long begin = toMillis(voucher.getBeginTime(), 0);
+        long end = toMillis(voucher.getEndTime(), Long.MAX_VALUE / 2);
+        int shards = shardsOf(voucher);
+        TransactionHooks.afterCommit(() -> {
+            seckillStockShards.initStock(voucher.getVoucherId(), shards, voucher.getStock());
+            writeRedis(voucher.getVoucherId(), begin, end, voucher.getStock(), shards);
+            apply(voucher.getVoucherId(), begin, end, shards);
+            stringRedisTemplate.convertAndSend(SECKILL_VOUCHER_CHANNEL,
+                    voucher.getVoucherId() + "," + begin + "," + end + "," + shards);
+        });
+    }
+
+    /*秒杀结束后redis中的数据保留到这个时间*/
+    public static long expireAt(long end) {
+        return end + ENDED_RETAIN_MILLIS;
+    }
+
+    private synchronized void apply(Long voucherId, long begin, long end, int shards) {
+        Map<Long, long[]> next = new HashMap<>(windows);
+        next.put(voucherId, new long[]{begin, end, shards});
+        windows = Collections.unmodifiableMap(next);
+    }
+
+    /*从数据库重新加载，同时重写redis中的秒杀信息，刷新库存key和下单用户set的过期时间*/
+    private void refresh() {
+        Supplier<List<SeckillVoucher>> l = loader;
+        if(l == null){
+            return;
+        }
+        try {
+            long retainAfter = System.currentTimeMillis() - ENDED_RETAIN_MILLIS;
+            Map<Long, long[]> current = windows;
+            Map<Long, long[]> next = new HashMap<>();
+            for (SeckillVoucher voucher : l.get()) {
+                long begin = toMillis(voucher.getBeginTime(), 0);
+                long end = toMillis(voucher.getEndTime(), Long.MAX_VALUE / 2);
+                if(end < retainAfter){
+                    continue;
+                }
+                int shards = shardsOf(voucher);
+                writeRedis(voucher.getVoucherId(), begin, end, null, shards);
+                next.put(voucher.getVoucherId(), new long[]{begin, end, shards});
+            }
+            synchronized (this) {
+                // 加载期间收到的新秒杀券保留
+                for (Map.Entry<Long, long[]> entry : windows.entrySet()) {
+                    if(!current.containsKey(entry.getKey())){
+                        next.putIfAbsent(entry.getKey(), entry.getValue());
+                    }
+                }
+                windows = Collections.unmodifiableMap(next);
+            }
+            // 未结束的秒杀券才保留分片的空标记
+            long now = System.currentTimeMillis();
+            Set<Long> active = new HashSet<>();
+            for (Map.Entry<Long, long[]> entry : next.entrySet()) {
+                if(entry.getValue()[1] >= now){
+                    active.add(entry.getKey());
+                }
+            }
+            seckillStockShards.retain(active);
+        } catch (Exception e) {
+            log.error("加载秒杀券时间窗口失败", e);
+        }
+    }
+
+    /*hash在秒杀结束一天后过期，库存key和下单用户set同时过期；stock只记录初始库存，实时库存仍在库存key中
+     * 下单用户set在第一次下单时才创建，每次刷新时重新设置过期时间
+     * */
+    private void writeRedis(Long voucherId, long begin, long end, Integer stock, int shards) {
+        byte[] key = (SECKILL_VOUCHER_KEY + voucherId).getBytes(StandardCharsets.UTF_8);
+        Map<byte[], byte[]> fields = new HashMap<>(4);
+        fields.put("begin".getBytes(StandardCharsets.UTF_8), String.valueOf(begin).getBytes(StandardCharsets.UTF_8));
+        fields.put("end".getBytes(StandardCharsets.UTF_8), String.valueOf(end).getBytes(StandardCharsets.UTF_8));
+        fields.put("shards".getBytes(StandardCharsets.UTF_8), String.valueOf(shards).getBytes(StandardCharsets.UTF_8));
+        if(stock != null){
+            fields.put("stock".getBytes(StandardCharsets.UTF_8), stock.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        long ttlSeconds = Math.max(60, (expireAt(end) - System.currentTimeMillis()) / 1000);
+        List<String> dataKeys = new ArrayList<>(SeckillStockShards.stockKeys(voucherId, shards));
+        if(shards <= 1){
+            dataKeys.add(SECKILL_ORDER_KEY + voucherId);
+        } else {
+            for (int i = 0; i < shards; i++) {
+                dataKeys.add(SeckillStockShards.orderKey(voucherId, i));
+            }
+        }
+        // 未设置结束时间的秒杀券不过期
+        boolean expires = end < Long.MAX_VALUE / 2;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hashCommands().hMSet(key, fields);
+            if(!expires){
+                return null;
+            }
+            connection.keyCommands().expire(key, ttlSeconds);
+            for (String dataKey : dataKeys) {
+                connection.keyCommands().expire(dataKey.getBytes(StandardCharsets.UTF_8), ttlSeconds);
+            }
+            return null;
+        });
+    }
+
+    private static int shardsOf(SeckillVoucher voucher) {
+        return voucher.getShards() == null ? 1 : Math.max(1, voucher.getShards());
+    }
+
+    /*未设置开始时间视为已开始，未设置结束时间视为不结束*/
+    private static long toMillis(LocalDateTime time, long defaultValue) {
+        return time == null ? defaultValue : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
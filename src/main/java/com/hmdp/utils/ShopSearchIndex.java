@@ -0,0 +1,379 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import static com.hmdp.utils.RedisConstants.SHOP_SEARCH_CHANNEL;
+
+/*店铺名称和商圈的进程内倒排索引：
+ * 按单字和相邻两字（n-gram）建立倒排表，查询时对各个gram的倒排表求交集，不访问数据库；
+ * 启动后从数据库分批读取构建不可变快照，之后定期重建；
+ * 店铺新增、修改通过redis广播到所有节点，写入增量表，查询时增量表覆盖快照
+ * */
+@Slf4j
+@Component
+public class ShopSearchIndex {
+
+    private static final int LOAD_BATCH_SIZE = 5000;
+
+    /*最多能翻到的结果数，排序时只保留前这么多个*/
+    private static final int MAX_RESULTS = 1000;
+
+    /*名称以关键字开头、名称包含关键字、商圈包含关键字，其余为各个字都出现但不连续*/
+    private static final int SCORE_NAME_PREFIX = 3;
+    private static final int SCORE_NAME = 2;
+    private static final int SCORE_AREA = 1;
+
+    /*分数高的在前，其次名称短的在前，最后按id*/
+    private static final Comparator<Hit> BEST_FIRST = Comparator.comparingInt((Hit h) -> -h.score)
+            .thenComparingInt(h -> h.length).thenComparingLong(h -> h.id);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final boolean enabled;
+    private final long rebuildMinutes;
+
+    /*尚未构建完成时为null，此时由调用方回退到数据库查询*/
+    private volatile Snapshot snapshot;
+
+    /*快照之后新增或修改的店铺，查询时覆盖快照中的同一个店铺*/
+    private final Map<Long, Doc> overrides = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /*上一次构建开始时的增量序号*/
+    private volatile long lastStartSequence;
+
+    /*按id游标分页读取店铺的id、名称、商圈*/
+    private volatile BiFunction<Long, Integer, List<Shop>> pageLoader;
+
+    private final ScheduledExecutorService rebuildExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("shop-search-rebuild-", true));
+
+    public ShopSearchIndex(StringRedisTemplate stringRedisTemplate,
+                           RedisMessageListenerContainer listenerContainer,
+                           @Value("${hmdp.shop.search.enabled:false}") boolean enabled,
+                           @Value("${hmdp.shop.search.rebuild-minutes:60}") long rebuildMinutes) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.enabled = enabled;
+        this.rebuildMinutes = rebuildMinutes;
+        if(enabled){
+            listenerContainer.addMessageListener((message, pattern) ->
+                    onUpdateMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                    new ChannelTopic(SHOP_SEARCH_CHANNEL));
+        }
+    }
+
+    public void register(BiFunction<Long, Integer, List<Shop>> pageLoader) {
+        this.pageLoader = pageLoader;
+    }
+
+    /*所有服务注册完成后异步构建，之后定期重建*/
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if(!enabled){
+            return;
+        }
+        rebuildExecutor.scheduleWithFixedDelay(this::rebuild, 0, rebuildMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rebuildExecutor.shutdownNow();
+    }
+
+    /*店铺新增或修改后调用，事务提交后通知所有节点（包括自己）更新索引，回滚时不更新*/
+    public void update(Shop shop) {
+        if(!enabled || shop == null){
+            return;
+        }
+        JSONObject message = new JSONObject();
+        message.set("id", shop.getId());
+        message.set("name", shop.getName());
+        message.set("area", shop.getArea());
+        TransactionHooks.afterCommit(() -> {
+            apply(shop.getId(), shop.getName(), shop.getArea());
+            stringRedisTemplate.convertAndSend(SHOP_SEARCH_CHANNEL, message.toString());
+        });
+    }
+
+    private void onUpdateMessage(String body) {
+        JSONObject message = JSONUtil.parseObj(body);
+        apply(message.getLong("id"), message.getStr("name"), message.getStr("area"));
+    }
+
+    private void apply(Long id, String name, String area) {
+        overrides.put(id, new Doc(id, normalize(name), normalize(area), sequence.incrementAndGet()));
+    }
+
+    /*搜索，按相关度排序后返回第from条开始的最多size个店铺id；索引尚未构建完成时返回null*/
+    public List<Long> search(String keyword, int from, int size) {
+        Snapshot s = snapshot;
+        if(!enabled || s == null){
+            return null;
+        }
+        String query = normalize(keyword);
+        if(query.isEmpty() || from >= MAX_RESULTS){
+            return Collections.emptyList();
+        }
+        List<String> grams = queryGrams(query);
+        int limit = Math.min(from + size, MAX_RESULTS);
+        // 只保留前limit个，堆顶是其中最差的
+        PriorityQueue<Hit> top = new PriorityQueue<>(limit + 1, BEST_FIRST.reversed());
+        // 1.快照：求交集，跳过已被增量覆盖的店铺
+        for (int ord : s.intersect(grams)) {
+            long id = s.ids[ord];
+            if(!overrides.isEmpty() && overrides.containsKey(id)){
+                continue;
+            }
+            offer(top, limit, id, s.names[ord], s.areas[ord], query);
+        }
+        // 2.增量：数量很少，直接判断
+        for (Doc doc : overrides.values()) {
+            if(doc.matches(grams)){
+                offer(top, limit, doc.id, doc.name, doc.area, query);
+            }
+        }
+        // 3.排序后取出本页
+        List<Hit> hits = new ArrayList<>(top);
+        hits.sort(BEST_FIRST);
+        List<Long> ids = new ArrayList<>(size);
+        for (int i = from; i < hits.size(); i++) {
+            ids.add(hits.get(i).id);
+        }
+        return ids;
+    }
+
+    private static void offer(PriorityQueue<Hit> top, int limit, long id, String name, String area, String query) {
+        int score = name.startsWith(query) ? SCORE_NAME_PREFIX
+                : name.contains(query) ? SCORE_NAME
+                : area.contains(query) ? SCORE_AREA : 0;
+        Hit hit = new Hit(id, score, name.length());
+        if(top.size() < limit){
+            top.offer(hit);
+        } else if(BEST_FIRST.compare(hit, top.peek()) < 0){
+            top.poll();
+            top.offer(hit);
+        }
+    }
+
+    /*从数据库分批读取，按id顺序编号，倒排表天然有序；构建完成后替换快照，
+     * 只清理快照中已经是相同名称和商圈的增量；扫描可能早于提交可见，此时增量保留到下一次构建，
+     * 上一次构建开始前的增量一定已被本次读到，直接清理
+     * */
+    private void rebuild() {
+        BiFunction<Long, Integer, List<Shop>> loader = pageLoader;
+        if(loader == null){
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        long startSequence = sequence.get();
+        long settledSequence = lastStartSequence;
+        try {
+            SnapshotBuilder builder = new SnapshotBuilder();
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = loader.apply(lastId, LOAD_BATCH_SIZE);
+                if(shops.isEmpty()){
+                    break;
+                }
+                for (Shop shop : shops) {
+                    builder.add(shop.getId(), normalize(shop.getName()), normalize(shop.getArea()));
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            Snapshot built = builder.build();
+            snapshot = built;
+            overrides.values().removeIf(doc -> doc.sequence <= settledSequence
+                    || (doc.sequence <= startSequence && built.contains(doc)));
+            lastStartSequence = startSequence;
+            log.info("店铺搜索索引构建完成，店铺{}个，gram{}个，耗时{}ms", snapshot.ids.length,
+                    snapshot.postings.size(), System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("店铺搜索索引构建失败", e);
+        }
+    }
+
+    /*转小写并去掉空白*/
+    private static String normalize(String text) {
+        return text == null ? "" : StrUtil.cleanBlank(text).toLowerCase();
+    }
+
+    /*查询只有一个字时用单字，否则用相邻两字*/
+    private static List<String> queryGrams(String query) {
+        if(query.length() == 1){
+            return Collections.singletonList(query);
+        }
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i + 1 < query.length(); i++) {
+            grams.add(query.substring(i, i + 2));
+        }
+        return new ArrayList<>(grams);
+    }
+
+    /*一段文本的所有单字和相邻两字*/
+    private static void addGrams(String text, Set<String> grams) {
+        for (int i = 0; i < text.length(); i++) {
+            grams.add(text.substring(i, i + 1));
+            if(i + 1 < text.length()){
+                grams.add(text.substring(i, i + 2));
+            }
+        }
+    }
+
+    private static class Snapshot {
+        private final long[] ids;
+        private final String[] names;
+        private final String[] areas;
+        /*gram -> 按编号升序的店铺编号*/
+        private final Map<String, int[]> postings;
+
+        private Snapshot(long[] ids, String[] names, String[] areas, Map<String, int[]> postings) {
+            this.ids = ids;
+            this.names = names;
+            this.areas = areas;
+            this.postings = postings;
+        }
+
+        /*快照中该店铺的名称和商圈与增量相同；ids按升序排列*/
+        private boolean contains(Doc doc) {
+            int ord = Arrays.binarySearch(ids, doc.id);
+            return ord >= 0 && names[ord].equals(doc.name) && areas[ord].equals(doc.area);
+        }
+
+        /*从最短的倒排表开始，逐个二分查找其余倒排表*/
+        private int[] intersect(List<String> grams) {
+            int[][] lists = new int[grams.size()][];
+            for (int i = 0; i < grams.size(); i++) {
+                int[] list = postings.get(grams.get(i));
+                if(list == null){
+                    return new int[0];
+                }
+                lists[i] = list;
+            }
+            Arrays.sort(lists, Comparator.comparingInt(l -> l.length));
+            int[] result = lists[0];
+            for (int i = 1; i < lists.length && result.length > 0; i++) {
+                int[] next = new int[result.length];
+                int n = 0;
+                for (int ord : result) {
+                    if(Arrays.binarySearch(lists[i], ord) >= 0){
+                        next[n++] = ord;
+                    }
+                }
+                result = Arrays.copyOf(next, n);
+            }
+            return result;
+        }
+    }
+
+    private static class SnapshotBuilder {
+        private long[] ids = new long[1024];
+        private final List<String> names = new ArrayList<>();
+        private final List<String> areas = new ArrayList<>();
+        private final Map<String, IntList> postings = new HashMap<>();
+        private final Set<String> grams = new LinkedHashSet<>();
+
+        private void add(long id, String name, String area) {
+            int ord = names.size();
+            if(ord == ids.length){
+                ids = Arrays.copyOf(ids, ord * 2);
+            }
+            ids[ord] = id;
+            names.add(name);
+            areas.add(area);
+            grams.clear();
+            addGrams(name, grams);
+            addGrams(area, grams);
+            for (String gram : grams) {
+                postings.computeIfAbsent(gram, k -> new IntList()).add(ord);
+            }
+        }
+
+        private Snapshot build() {
+            Map<String, int[]> result = new HashMap<>(postings.size() * 2);
+            postings.forEach((gram, list) -> result.put(gram, list.toArray()));
+            return new Snapshot(Arrays.copyOf(ids, names.size()), names.toArray(new String[0]),
+                    areas.toArray(new String[0]), result);
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        private void add(int value) {
+            if(size == values.length){
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static class Doc {
+        private final long id;
+        private final String name;
+        private final String area;
+        private final long sequence;
+
+        private Doc(long id, String name, String area, long sequence) {
+            this.id = id;
+            this.name = name;
+            this.area = area;
+            this.sequence = sequence;
+        }
+
+        private boolean matches(List<String> grams) {
+            for (String gram : grams) {
+                if(!name.contains(gram) && !area.contains(gram)){
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Hit {
+        private final long id;
+        private final int score;
+        private final int length;
+
+        private Hit(long id, int score, int length) {
+            this.id = id;
+            this.score = score;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+/*HMAC-SHA256签名的无状态token：base64url(载荷).base64url(签名前16字节)
+ * 载荷：版本、会话id、过期时间（秒）、用户id、昵称、头像
+ * 会话id在续期时保持不变，用于吊销同一次登录签发的所有token
+ * */
+public class SignedTokenCodec {
+
+    private static final byte VERSION = 1;
+    private static final int SIGNATURE_BYTES = 16;
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    /*Mac不是线程安全的，每个线程一个实例*/
+    private final ThreadLocal<Mac> macs;
+
+    public SignedTokenCodec(String secret) {
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public static boolean isSignedToken(String token) {
+        return token.indexOf('.') > 0;
+    }
+
+    public String encode(SignedToken token) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeLong(token.getSessionId());
+            out.writeLong(token.getExpireAt());
+            UserDTO user = token.getUser();
+            out.writeLong(user.getId());
+            out.writeUTF(user.getNickName() == null ? "" : user.getNickName());
+            out.writeUTF(user.getIcon() == null ? "" : user.getIcon());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    /*校验签名并解析，签名错误或格式错误返回null；不检查是否过期*/
+    public SignedToken decode(String token) {
+        int dot = token.indexOf('.');
+        if(dot <= 0){
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = DECODER.decode(token.substring(0, dot));
+            signature = DECODER.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        // 常量时间比较，避免通过耗时猜测签名
+        if(!MessageDigest.isEqual(sign(payload), signature)){
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            if(in.readByte() != VERSION){
+                return null;
+            }
+            long sessionId = in.readLong();
+            long expireAt = in.readLong();
+            UserDTO user = new UserDTO();
+            user.setId(in.readLong());
+            String nickName = in.readUTF();
+            String icon = in.readUTF();
+            user.setNickName(nickName.isEmpty() ? null : nickName);
+            user.setIcon(icon.isEmpty() ? null : icon);
+            return new SignedToken(sessionId, expireAt, user);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private byte[] sign(byte[] payload) {
+        return Arrays.copyOf(macs.get().doFinal(payload), SIGNATURE_BYTES);
+    }
+
+    public static class SignedToken {
+        private final long sessionId;
+        private final long expireAt;
+        private final UserDTO user;
+
+        public SignedToken(long sessionId, long expireAt, UserDTO user) {
+            this.sessionId = sessionId;
+            this.expireAt = expireAt;
+            this.user = user;
+        }
+
+        public long getSessionId() {
+            return sessionId;
+        }
+
+        /*过期时间，epoch秒*/
+        public long getExpireAt() {
+            return expireAt;
+        }
+
+        public UserDTO getUser() {
+            return user;
+        }
+    }
+}
@@ -2,8 +2,11 @@ package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 /*Redis分布式简单锁*/
@@ -12,6 +15,15 @@ public class SimpleRedisLock implements ILock{
     private static final String LOCK_PREFIX = "lock:";
     //true: 去除横线
     private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+
+    /*释放锁脚本，只加载一次，之后用EVALSHA执行*/
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static{
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("lock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
     private String name;
 
     private StringRedisTemplate stringRedisTemplate;
@@ -33,12 +45,9 @@ public class SimpleRedisLock implements ILock{
 
     @Override
     public void unLock() {
-        //获取线程标识
-        String threadId = ID_PREFIX + Thread.currentThread().getId();
-        String id = stringRedisTemplate.opsForValue().get(LOCK_PREFIX + name);
-        //一致则释放锁，不一致，忽略操作，线程结束
-        if(threadId.equals(id)){
-            stringRedisTemplate.delete(LOCK_PREFIX+name);
-        }
+        //比较线程标识和删除在lua脚本中原子执行，避免判断之后锁过期被其他线程获取，又被误删
+        stringRedisTemplate.execute(UNLOCK_SCRIPT,
+                Collections.singletonList(LOCK_PREFIX + name),
+                ID_PREFIX + Thread.currentThread().getId());
     }
 }
@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*两级锁：先获取本地锁，同一节点上争抢同一个key的线程在本地就被挡住，
+ * 只有拿到本地锁的线程才去获取redisson分布式锁，减少访问redis的次数；
+ * 本地锁按key创建，引用计数归零后移除，不同的key互不影响；
+ * 按命名空间统计获取锁的耗时和持有锁的时长
+ * 获取都不等待，失败由调用方稍后重试；一个线程一次持有多把锁时也不会互相死锁
+ * */
+@Component
+public class TwoLevelLockManager {
+
+    private final RedissonClient redissonClient;
+
+    private final Map<String, Namespace> namespaces = new ConcurrentHashMap<>();
+
+    public TwoLevelLockManager(RedissonClient redissonClient) {
+        this.redissonClient = redissonClient;
+    }
+
+    /*获取 namespace+id 的锁，成功返回Handle，本地或redis中已被其他线程持有时返回null*/
+    public Handle tryLock(String namespace, long id) {
+        Namespace ns = namespaces.computeIfAbsent(namespace, k -> new Namespace());
+        long begin = System.nanoTime();
+        // 1.本地锁，可重入，同一个线程不受影响
+        LocalLock local = ns.acquire(id);
+        if(!local.lock.tryLock()){
+            ns.release(id);
+            ns.localRejected.increment();
+            ns.waitLatency.record(System.nanoTime() - begin);
+            return null;
+        }
+        // 2.分布式锁
+        RLock remote = redissonClient.getLock(namespace + id);
+        boolean locked;
+        try {
+            locked = remote.tryLock();
+        } catch (RuntimeException e) {
+            local.lock.unlock();
+            ns.release(id);
+            throw e;
+        }
+        long acquiredAt = System.nanoTime();
+        ns.waitLatency.record(acquiredAt - begin);
+        if(!locked){
+            local.lock.unlock();
+            ns.release(id);
+            ns.remoteRejected.increment();
+            return null;
+        }
+        ns.acquired.increment();
+        return new Handle(ns, id, local, remote, acquiredAt);
+    }
+
+    /*按命名空间的锁指标*/
+    public Map<String, Object> queryLockMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        namespaces.forEach((name, ns) -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("acquired", ns.acquired.sum());
+            item.put("localRejected", ns.localRejected.sum());
+            item.put("remoteRejected", ns.remoteRejected.sum());
+            item.put("localKeys", ns.locks.size());
+            item.put("wait", ns.waitLatency.snapshot());
+            item.put("hold", ns.holdLatency.snapshot());
+            metrics.put(name, item);
+        });
+        return metrics;
+    }
+
+    /*已获取的锁，必须由获取锁的线程释放*/
+    public static class Handle {
+        private final Namespace ns;
+        private final long id;
+        private final LocalLock local;
+        private final RLock remote;
+        private final long acquiredAt;
+
+        private Handle(Namespace ns, long id, LocalLock local, RLock remote, long acquiredAt) {
+            this.ns = ns;
+            this.id = id;
+            this.local = local;
+            this.remote = remote;
+            this.acquiredAt = acquiredAt;
+        }
+
+        public void unlock() {
+            try {
+                remote.unlock();
+            } finally {
+                local.lock.unlock();
+                ns.release(id);
+                ns.holdLatency.record(System.nanoTime() - acquiredAt);
+            }
+        }
+    }
+
+    /*本地锁和正在使用它的线程数，只在map的compute中修改*/
+    private static class LocalLock {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int users;
+    }
+
+    private static class Namespace {
+        private final Map<Long, LocalLock> locks = new ConcurrentHashMap<>();
+        private final LatencyStats waitLatency = new LatencyStats();
+        private final LatencyStats holdLatency = new LatencyStats();
+        private final LongAdder acquired = new LongAdder();
+        private final LongAdder localRejected = new LongAdder();
+        private final LongAdder remoteRejected = new LongAdder();
+
+        private LocalLock acquire(long id) {
+            return locks.compute(id, (k, v) -> {
+                LocalLock l = v == null ? new LocalLock() : v;
+                l.users++;
+                return l;
+            });
+        }
+
+        /*最后一个使用者释放后移除*/
+        private void release(long id) {
+            locks.computeIfPresent(id, (k, v) -> --v.users == 0 ? null : v);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+--- 1.参数列表
+--- 1.1.两个用户的关注集合key
+local a = KEYS[1]
+local b = KEYS[2]
+--- 1.2.最多返回个数、直接求交集的集合大小上限、每次SSCAN的COUNT、最多扫描次数
+local limit = tonumber(ARGV[1])
+local sinterMax = tonumber(ARGV[2])
+local scanCount = ARGV[3]
+local maxRounds = tonumber(ARGV[4])
+
+--- 2.遍历较小的集合
+if(redis.call('scard', a) > redis.call('scard', b)) then
+    a, b = b, a
+end
+local result = {}
+--- 3.较小的集合不大时直接SINTER
+if(redis.call('scard', a) <= sinterMax) then
+    local members = redis.call('sinter', a, b)
+    for i = 1, math.min(#members, limit) do
+        result[i] = members[i]
+    end
+    return result
+end
+--- 4.否则SSCAN较小的集合，逐个判断是否在另一个集合中，扫描次数有上限，耗时不随关注数增长
+local cursor = '0'
+local rounds = 0
+repeat
+    local page = redis.call('sscan', a, cursor, 'COUNT', scanCount)
+    cursor = page[1]
+    for _, member in ipairs(page[2]) do
+        if(redis.call('sismember', b, member) == 1) then
+            result[#result + 1] = member
+            if(#result >= limit) then
+                return result
+            end
+        end
+    end
+    rounds = rounds + 1
+until cursor == '0' or rounds >= maxRounds
+return result
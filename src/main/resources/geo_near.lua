@@ -0,0 +1,26 @@
+--- 1.参数列表
+--- 1.1.店铺类型的GEO集合key
+local geoKey = KEYS[1]
+--- 1.2.附近店铺快照key，按距离排序的zset
+local nearKey = KEYS[2]
+--- 1.3.经纬度、搜索半径（米）、最多结果数、快照有效期（秒）、本页起止下标
+local x = ARGV[1]
+local y = ARGV[2]
+local radius = ARGV[3]
+local count = ARGV[4]
+local ttl = ARGV[5]
+local from = ARGV[6]
+local to = ARGV[7]
+
+--- 2.快照不存在时搜索一次，结果连同距离一起保存，之后翻页只按下标读取，不再重新搜索
+if(redis.call('exists', nearKey) == 0) then
+    local r = redis.pcall('geosearchstore', nearKey, geoKey, 'FROMLONLAT', x, y,
+            'BYRADIUS', radius, 'm', 'ASC', 'COUNT', count, 'STOREDIST')
+    --- 2.1.redis 6.2以下没有GEOSEARCHSTORE，用GEORADIUS的STOREDIST
+    if(type(r) == 'table' and r.err) then
+        redis.call('georadius', geoKey, x, y, radius, 'm', 'ASC', 'COUNT', count, 'STOREDIST', nearKey)
+    end
+    redis.call('expire', nearKey, ttl)
+end
+--- 3.返回本页的店铺id和距离
+return redis.call('zrange', nearKey, from, to, 'WITHSCORES')
@@ -0,0 +1,34 @@
+--- 1.参数列表
+--- 1.1.热榜key、热榜基准时间key
+local hotKey = KEYS[1]
+local epochKey = KEYS[2]
+--- 1.2.操作类型、当前时间（秒）、热度半衰期（秒）
+local op = ARGV[1]
+local now = tonumber(ARGV[2])
+local halfLife = tonumber(ARGV[3])
+
+local epoch = tonumber(redis.call('get', epochKey))
+if not epoch then
+    epoch = now
+    redis.call('set', epochKey, epoch)
+end
+
+--- 2.增加热度：ARGV[4]博客id，ARGV[5]权重，ARGV[6]事件时间（秒）
+if(op == 'incr') then
+    local delta = tonumber(ARGV[5]) * 2 ^ ((tonumber(ARGV[6]) - epoch) / halfLife)
+    redis.call('zincrby', hotKey, delta, ARGV[4])
+    return 1
+end
+
+--- 3.重置基准时间：所有分数乘以 2^(-(now - epoch) / 半衰期)，避免分数无限增大；ARGV[4]保留的个数
+if(op == 'rebase') then
+    local factor = 2 ^ (-(now - epoch) / halfLife)
+    redis.call('zremrangebyrank', hotKey, 0, -tonumber(ARGV[4]) - 1)
+    local members = redis.call('zrange', hotKey, 0, -1, 'WITHSCORES')
+    for i = 1, #members, 2 do
+        redis.call('zadd', hotKey, tonumber(members[i + 1]) * factor, members[i])
+    end
+    redis.call('set', epochKey, now)
+    return #members / 2
+end
+return 0
@@ -0,0 +1,42 @@
+--- 1.参数列表
+--- 1.1.点赞集合key、点赞数增量key、热榜key、热榜基准时间key
+local likedKey = KEYS[1]
+local deltaKey = KEYS[2]
+local hotKey = KEYS[3]
+local epochKey = KEYS[4]
+--- 1.2.博客id、用户id、点赞时间（毫秒）、点赞权重、热度半衰期（秒）
+local blogId = ARGV[1]
+local userId = ARGV[2]
+local now = tonumber(ARGV[3])
+local weight = tonumber(ARGV[4])
+local halfLife = tonumber(ARGV[5])
+
+--- 热度增量：权重 * 2^((事件时间 - 基准时间) / 半衰期)，越新的事件增量越大，相当于旧的热度随时间衰减
+local function hotIncr(time, w)
+    local epoch = tonumber(redis.call('get', epochKey))
+    if not epoch then
+        epoch = math.floor(now / 1000)
+        redis.call('set', epochKey, epoch)
+    end
+    local delta = w * 2 ^ ((time / 1000 - epoch) / halfLife)
+    if(w < 0) then
+        --- 取消点赞只作用于仍在热榜中的博客，已被淘汰的不会以负分重新加入
+        redis.call('zadd', hotKey, 'XX', 'INCR', delta, blogId)
+        return
+    end
+    redis.call('zincrby', hotKey, delta, blogId)
+end
+
+--- 2.已点赞，取消点赞，点赞数增量-1，扣除当初点赞时增加的热度，返回0
+local likedTime = redis.call('zscore', likedKey, userId)
+if(likedTime) then
+    redis.call('zrem', likedKey, userId)
+    redis.call('hincrby', deltaKey, blogId, -1)
+    hotIncr(tonumber(likedTime), -weight)
+    return 0
+end
+--- 3.未点赞，按时间保存用户，点赞数增量+1，增加热度，返回1
+redis.call('zadd', likedKey, now, userId)
+redis.call('hincrby', deltaKey, blogId, 1)
+hotIncr(now, weight)
+return 1
@@ -2,4 +2,10 @@
 --- Generated by EmmyLua(https://github.com/EmmyLua)
 --- Created by Administrator.
 --- DateTime: 2023/1/27 17:22
----
\ No newline at end of file
+---
+--- 释放锁：KEYS[1]锁key，ARGV[1]线程标识
+--- 比较线程标识与锁中的标识是否一致，一致则删除，判断和删除在一次调用中完成
+if(redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('del', KEYS[1])
+end
+return 0
@@ -0,0 +1,8 @@
+--- 看门狗续期单个锁，续期时按key逐个执行，集群中各锁可能位于不同的slot
+--- KEYS[1]锁key；ARGV[1]租期（毫秒），ARGV[2]持有者
+--- 返回锁是否仍由该持有者持有，不再持有的不续期
+if(redis.call('hexists', KEYS[1], ARGV[2]) == 1) then
+    redis.call('pexpire', KEYS[1], ARGV[1])
+    return 1
+end
+return 0
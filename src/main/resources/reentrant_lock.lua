@@ -0,0 +1,9 @@
+--- 获取可重入锁：hash中 field为持有者（节点id:线程id），value为重入次数
+--- KEYS[1]锁key；ARGV[1]租期（毫秒），ARGV[2]持有者
+--- 获取成功返回nil，失败返回锁的剩余有效期（毫秒）
+if(redis.call('exists', KEYS[1]) == 0 or redis.call('hexists', KEYS[1], ARGV[2]) == 1) then
+    redis.call('hincrby', KEYS[1], ARGV[2], 1)
+    redis.call('pexpire', KEYS[1], ARGV[1])
+    return nil
+end
+return redis.call('pttl', KEYS[1])
@@ -1,28 +1,59 @@
---- 1.参数列表: key （固定前缀+id）
+--- 1.参数列表: key （固定前缀+id）；KEYS[1]为订单消息队列
 --- 1.1.优惠券id
 local voucherId = ARGV[1]
 --- 1.2.用户ID
 local userId = ARGV[2]
+--- 1.3.订单ID
+local orderId = ARGV[3]
 
 --- 2.数据key
 --- 2.1.库存key
 local stockKey = 'seckill:stock:' .. voucherId
 --- 2.2.订单key
 local orderKey = 'seckill:order' .. voucherId
+--- 2.3.秒杀信息key，hash：begin、end为毫秒时间戳，shards为库存分片数
+local voucherKey = 'seckill:voucher:' .. voucherId
+--- 2.4.订单消息队列key
+local streamKey = KEYS[1]
 
 --- 3.脚本业务
---- 3.1.判断库存是否冲突
-if(tonumber(redis.call('get', stockKey)) <= 0) then
-    --- 3.2.库存不足，返回1
+--- 3.1.判断秒杀时间，使用redis服务器时间，各节点时钟不一致也不影响
+--- 下面会在读取TIME之后写入数据，redis 5以下需要按命令复制
+redis.replicate_commands()
+local window = redis.call('hmget', voucherKey, 'begin', 'end', 'shards')
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(window[1] and now < tonumber(window[1])) then
+    --- 3.1.1.秒杀尚未开始，返回3
+    return 3
+end
+if(window[2] and now > tonumber(window[2])) then
+    --- 3.1.2.秒杀已经结束，返回4
+    return 4
+end
+--- 3.1.3.库存已分片的秒杀券不使用这里的key，本节点还没有收到分片信息，返回6，稍后重试
+if(window[3] and tonumber(window[3]) > 1) then
+    return 6
+end
+--- 3.2.判断库存是否充足
+local stock = tonumber(redis.call('get', stockKey))
+if(not stock) then
+    --- 3.2.1.库存key不存在（新增的秒杀券尚未写入库存，或已过期），返回7，不能当作售罄
+    return 7
+end
+if(stock <= 0) then
+    --- 3.2.2.库存不足，返回1
     return 1
 end
---- 3.2.判断用户是否下单（从set集合检查用户)
+--- 3.3.判断用户是否下单（从set集合检查用户)
 if(redis.call('sismember', orderKey, userId) == 1) then
-    --- 3.3.存在，说明重复下单，返回2
+    --- 3.3.1.存在，说明重复下单，返回2
     return 2
 end
 --- 3.4.扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
 --- 3.5.保存用户 sadd orderKey userId
 redis.call('sadd', orderKey, userId);
-return 0
\ No newline at end of file
+--- 3.6.发送消息到队列中，XADD stream.orders * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
@@ -0,0 +1,9 @@
+--- 从其他分片借一个库存
+--- KEYS[1]分片库存key
+--- 返回：1借到，0该分片库存不足
+local stock = tonumber(redis.call('get', KEYS[1]))
+if(not stock or stock <= 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], -1)
+return 1
@@ -0,0 +1,34 @@
+--- 分片库存的秒杀：只访问用户所在分片的key，key带相同的hash tag，在集群中位于同一个slot
+--- KEYS[1]分片库存key，KEYS[2]分片的下单用户set
+--- ARGV[1]用户id，ARGV[2]开始时间，ARGV[3]结束时间（毫秒，取自本地快照）
+--- 返回：0成功，2重复下单，3未开始，4已结束，5本分片库存不足，7本分片库存key不存在
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local userId = ARGV[1]
+
+--- 1.判断秒杀时间，使用redis服务器时间；读取TIME之后有写操作，redis 5以下需要按命令复制
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(now < tonumber(ARGV[2])) then
+    return 3
+end
+if(now > tonumber(ARGV[3])) then
+    return 4
+end
+--- 2.一个用户总是路由到同一个分片，在分片的set中判断是否重复下单
+if(redis.call('sismember', orderKey, userId) == 1) then
+    return 2
+end
+--- 3.本分片库存不足，由调用方向其他分片借库存
+local stock = tonumber(redis.call('get', stockKey))
+if(not stock) then
+    return 7
+end
+if(stock <= 0) then
+    return 5
+end
+--- 4.扣库存，记录用户
+redis.call('incrby', stockKey, -1)
+redis.call('sadd', orderKey, userId)
+return 0
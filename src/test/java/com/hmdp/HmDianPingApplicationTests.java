@@ -1,15 +1,29 @@
 package com.hmdp;
 
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.service.impl.ShopTypeServiceImpl;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.KryoCacheCodec;
 import com.hmdp.utils.RedisIDMaker;
+import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -17,9 +31,15 @@ class HmDianPingApplicationTests {
     @Resource
     private ShopServiceImpl shopService;
 
+    @Resource
+    private ShopTypeServiceImpl shopTypeService;
+
     @Resource
     private RedisIDMaker redisIDMaker;
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
     private ExecutorService es = Executors.newFixedThreadPool(300);
 
     @Test
@@ -41,4 +61,113 @@ class HmDianPingApplicationTests {
         System.out.println("time = " + (end - begin));
     }
 
+    /*号段预取模式：多线程生成的id不重复，同一线程内严格递增*/
+    @Test
+    void testIDMakerSegmentUnique() throws InterruptedException {
+        RedisIDMaker segmentMaker = new RedisIDMaker(stringRedisTemplate, 1000);
+        int threads = 16;
+        int perThread = 2000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicLong disorders = new AtomicLong();
+        CountDownLatch latch = new CountDownLatch(threads);
+        Runnable task = () -> {
+            long last = Long.MIN_VALUE;
+            for (int i = 0; i < perThread; i++) {
+                long id = segmentMaker.nextID("segment-test");
+                if(id <= last){
+                    disorders.incrementAndGet();
+                }
+                last = id;
+                ids.add(id);
+            }
+            latch.countDown();
+        };
+        for (int i = 0; i < threads; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        assertEquals(threads * perThread, ids.size(), "存在重复的id");
+        assertEquals(0, disorders.get(), "同一线程内id不是递增的");
+    }
+
+    /*对比每次INCR与号段预取两种模式在1~64个线程下的吞吐；性能测试，需要时手动运行*/
+    @Disabled("性能测试，需要时手动运行")
+    @Test
+    void testIDMakerSegment() throws InterruptedException {
+        RedisIDMaker incrMaker = new RedisIDMaker(stringRedisTemplate, 0);
+        RedisIDMaker segmentMaker = new RedisIDMaker(stringRedisTemplate, 1000);
+        int perThread = 2000;
+        for (int threads : new int[]{1, 4, 16, 64}) {
+            long incrTime = benchmarkIDMaker(incrMaker, threads, perThread);
+            long segmentTime = benchmarkIDMaker(segmentMaker, threads, perThread);
+            System.out.println("threads = " + threads
+                    + ", incr ops/s = " + threads * perThread * 1000L / Math.max(1, incrTime)
+                    + ", segment ops/s = " + threads * perThread * 1000L / Math.max(1, segmentTime));
+        }
+    }
+
+    private long benchmarkIDMaker(RedisIDMaker maker, int threads, int perThread) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(threads);
+        Runnable task = () -> {
+            for (int i = 0; i < perThread; i++) {
+                maker.nextID("bench");
+            }
+            latch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        return System.currentTimeMillis() - begin;
+    }
+
+    /*JSON、Kryo、Kryo+LZ4三种编码：编码后再解码得到相同的Shop和List<ShopType>*/
+    @Test
+    void testCacheCodecRoundTrip() {
+        Shop shop = shopService.getById(1L);
+        List<ShopType> typeList = shopTypeService.query().orderByAsc("sort").list();
+        CacheCodec[] codecs = {new JsonCacheCodec(), new KryoCacheCodec(0), new KryoCacheCodec(256)};
+        for (CacheCodec codec : codecs) {
+            assertEquals(shop, codec.decode(codec.encode(shop), Shop.class));
+            assertEquals(typeList, codec.decodeList(codec.encode(typeList), ShopType.class));
+        }
+    }
+
+    /*对比JSON、Kryo、Kryo+LZ4三种编码对Shop和List<ShopType>的编解码耗时和大小；性能测试，需要时手动运行*/
+    @Disabled("性能测试，需要时手动运行")
+    @Test
+    void testCacheCodec() {
+        Shop shop = shopService.getById(1L);
+        List<ShopType> typeList = shopTypeService.query().orderByAsc("sort").list();
+        CacheCodec[] codecs = {new JsonCacheCodec(), new KryoCacheCodec(0), new KryoCacheCodec(256)};
+        String[] names = {"json", "kryo", "kryo+lz4"};
+        for (int i = 0; i < codecs.length; i++) {
+            CacheCodec codec = codecs[i];
+            benchmarkCodec(names[i] + " shop", codec, shop, bytes -> codec.decode(bytes, Shop.class));
+            benchmarkCodec(names[i] + " typeList", codec, typeList, bytes -> codec.decodeList(bytes, ShopType.class));
+        }
+    }
+
+    private void benchmarkCodec(String name, CacheCodec codec, Object value, Function<byte[], Object> decoder) {
+        int warmup = 20000;
+        int rounds = 100000;
+        byte[] bytes = codec.encode(value);
+        for (int i = 0; i < warmup; i++) {
+            decoder.apply(codec.encode(value));
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            bytes = codec.encode(value);
+        }
+        long encodeNanos = (System.nanoTime() - begin) / rounds;
+        begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            decoder.apply(bytes);
+        }
+        long decodeNanos = (System.nanoTime() - begin) / rounds;
+        System.out.println(name + ": size = " + bytes.length + "B, encode = " + encodeNanos
+                + "ns/op, decode = " + decodeNanos + "ns/op");
+    }
+
 }
@@ -1,23 +1,43 @@
 package com.hmdp;
 
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisLockFactory;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.redisson.RedissonLock;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-@SpringBootTest
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*看门狗租期缩短为3秒，续期测试不用等待太久*/
+@SpringBootTest(properties = "hmdp.lock.lease-ms=" + RedissonTest.LEASE_MS)
 @Slf4j
 public class RedissonTest {
 
+    static final long LEASE_MS = 3000;
+
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private RedisLockFactory redisLockFactory;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
     private RLock lock;
 
     @BeforeEach
@@ -41,4 +61,119 @@ public class RedissonTest {
         }
     }
 
+    /*可重入：同一线程获取两次，释放一次后仍然持有，释放两次后锁被删除*/
+    @Test
+    void testRedisReentrantLock() throws InterruptedException {
+        ILock reentrant = redisLockFactory.getLock("order");
+        assertTrue(reentrant.lock(1, TimeUnit.SECONDS), "获取锁失败");
+        try {
+            assertTrue(reentrant.lock(1, TimeUnit.SECONDS), "重入失败");
+            reentrant.unLock();
+            assertTrue(stringRedisTemplate.hasKey("lock:order"), "重入后释放一次，应仍然持有");
+        } finally {
+            reentrant.unLock();
+        }
+        assertFalse(stringRedisTemplate.hasKey("lock:order"));
+    }
+
+    /*看门狗续期：持有时间超过两个租期，锁仍然存在且有效期被刷新*/
+    @Test
+    void testRedisLockWatchdog() throws InterruptedException {
+        ILock watched = redisLockFactory.getLock("watchdog");
+        assertTrue(watched.lock(1, TimeUnit.SECONDS));
+        try {
+            Thread.sleep(LEASE_MS * 2);
+            Long ttl = stringRedisTemplate.getExpire("lock:watchdog", TimeUnit.MILLISECONDS);
+            assertTrue(ttl != null && ttl > 0, "锁已过期，看门狗没有续期");
+        } finally {
+            watched.unLock();
+        }
+        assertFalse(stringRedisTemplate.hasKey("lock:watchdog"));
+    }
+
+    /*释放通知：等待中的线程在锁释放后立即获取，而不是等到锁过期*/
+    @Test
+    void testRedisLockReleaseNotify() throws Exception {
+        ILock notified = redisLockFactory.getLock("notify");
+        assertTrue(notified.lock(1, TimeUnit.SECONDS));
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        AtomicLong acquiredAt = new AtomicLong();
+        Future<Boolean> waiter = es.submit(() -> {
+            ILock l = redisLockFactory.getLock("notify");
+            boolean locked = l.lock(LEASE_MS * 3, TimeUnit.MILLISECONDS);
+            acquiredAt.set(System.nanoTime());
+            if(locked){
+                l.unLock();
+            }
+            return locked;
+        });
+        // 等待线程进入等待后再释放
+        Thread.sleep(200);
+        long releasedAt = System.nanoTime();
+        notified.unLock();
+        assertTrue(waiter.get(LEASE_MS * 3, TimeUnit.MILLISECONDS), "等待线程没有获取到锁");
+        es.shutdown();
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(acquiredAt.get() - releasedAt);
+        // 锁由看门狗续期，没有通知时要等到超时才能重试
+        assertTrue(waitMillis < LEASE_MS / 3, "释放后" + waitMillis + "ms才获取到锁");
+    }
+
+    /*对比RedisReentrantLock和Redisson RLock：不同线程数争抢同一把锁时的吞吐量和平均等待时间*/
+    @Test
+    void benchmarkLock() throws InterruptedException {
+        int perThread = 200;
+        for (int threads : new int[]{1, 8, 32}) {
+            String rlock = benchmark(threads, perThread, () -> {
+                RLock l = redissonClient.getLock("bench:redisson");
+                l.lock();
+                return l::unlock;
+            });
+            String ilock = benchmark(threads, perThread, () -> {
+                ILock l = redisLockFactory.getLock("bench:reentrant");
+                if(!l.lock(1, TimeUnit.MINUTES)){
+                    throw new IllegalStateException("获取锁超时");
+                }
+                return l::unLock;
+            });
+            System.out.println("threads = " + threads + ", redisson: " + rlock + ", reentrant: " + ilock);
+        }
+    }
+
+    private String benchmark(int threads, int perThread, LockAction action) throws InterruptedException {
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(threads);
+        AtomicLong waitNanos = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            es.submit(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        long start = System.nanoTime();
+                        Runnable unlock = action.lock();
+                        waitNanos.addAndGet(System.nanoTime() - start);
+                        unlock.run();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - begin;
+        es.shutdown();
+        assertEquals(0, failures.get(), "获取锁失败");
+        long ops = (long) threads * perThread;
+        return "ops/s = " + ops * 1_000_000_000L / Math.max(1, elapsed)
+                + ", avg lock = " + waitNanos.get() / ops / 1000 + "us";
+    }
+
+    /*加锁，返回释放锁的操作*/
+    private interface LockAction {
+        Runnable lock() throws InterruptedException;
+    }
 }